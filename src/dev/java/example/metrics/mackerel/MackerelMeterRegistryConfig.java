@@ -0,0 +1,48 @@
+package example.metrics.mackerel;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.unit8.metrics.mackerel.MackerelMeterRegistry;
+import net.unit8.metrics.mackerel.MackerelRegistryConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Reports the Micrometer meters to Mackerel when <code>mackerel.apiKey</code> is set.
+ * The keys of {@link MackerelRegistryConfig} are read from the environment, e.g. <code>mackerel.step=PT1M</code>.
+ */
+@Configuration
+@ConditionalOnClass(MeterRegistry.class)
+@ConditionalOnProperty(prefix = "mackerel", name = "apiKey")
+public class MackerelMeterRegistryConfig {
+    @Autowired
+    private Environment environment;
+
+    @Bean
+    @ConditionalOnMissingBean
+    public MackerelRegistryConfig mackerelRegistryConfig() {
+        return new MackerelRegistryConfig() {
+            @Override
+            public String get(String key) {
+                return environment.getProperty(key);
+            }
+        };
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public Clock micrometerClock() {
+        return Clock.SYSTEM;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public MackerelMeterRegistry mackerelMeterRegistry(MackerelRegistryConfig config, Clock clock) {
+        return new MackerelMeterRegistry(config, clock);
+    }
+}
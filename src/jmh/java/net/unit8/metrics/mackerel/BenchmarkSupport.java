@@ -0,0 +1,79 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * Synthetic registries and senders shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Creates a registry with the given number of metrics, evenly mixed from gauges, counters,
+     * histograms, meters and timers, each with some recorded values.
+     */
+    static MetricRegistry registry(int size) {
+        MetricRegistry registry = new MetricRegistry();
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            String name = MetricRegistry.name("app", "component" + (i % 100), "metric" + i);
+            switch (i % 5) {
+                case 0:
+                    final long value = random.nextInt(1000);
+                    registry.register(name, new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return value;
+                        }
+                    });
+                    break;
+                case 1:
+                    registry.counter(name).inc(random.nextInt(1000));
+                    break;
+                case 2:
+                    for (int j = 0; j < 100; j++) {
+                        registry.histogram(name).update(random.nextInt(1000));
+                    }
+                    break;
+                case 3:
+                    registry.meter(name).mark(random.nextInt(1000));
+                    break;
+                default:
+                    for (int j = 0; j < 100; j++) {
+                        registry.timer(name).update(random.nextInt(1000), java.util.concurrent.TimeUnit.MILLISECONDS);
+                    }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * A sender which hands every data point to a blackhole instead of buffering it.
+     */
+    static class BlackholeSender extends MackerelSender {
+        private Blackhole blackhole;
+
+        BlackholeSender() {
+            super("benchmark", "benchmark", "http://localhost:1");
+        }
+
+        void setBlackhole(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        void add(String name, double value, long timestamp) {
+            blackhole.consume(name);
+            blackhole.consume(value);
+        }
+
+        @Override
+        void flush() {
+        }
+    }
+}
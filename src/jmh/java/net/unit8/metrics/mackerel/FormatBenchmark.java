@@ -0,0 +1,63 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricAttribute;
+import com.codahale.metrics.Timer;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversion of gauge values and the building of series names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FormatBenchmark {
+    private final Object longValue = 123456789L;
+    private final Object doubleValue = 0.75;
+    private final Object bigDecimalValue = new BigDecimal("12345.678");
+    private final Counter counter = new Counter();
+    private final Timer timer = new Timer();
+    private final Set<MetricAttribute> noneDisabled = Collections.emptySet();
+    private final Set<MetricAttribute> percentilesDisabled = EnumSet.of(
+            MetricAttribute.P50, MetricAttribute.P75, MetricAttribute.P95,
+            MetricAttribute.P98, MetricAttribute.P99, MetricAttribute.P999);
+
+    @Benchmark
+    public double formatLong() {
+        return MackerelReporter.format(longValue);
+    }
+
+    @Benchmark
+    public double formatDouble() {
+        return MackerelReporter.format(doubleValue);
+    }
+
+    @Benchmark
+    public double formatBigDecimal() {
+        return MackerelReporter.format(bigDecimalValue);
+    }
+
+    @Benchmark
+    public String[] counterSeriesNames() {
+        return MackerelMetricIndex.seriesNames("benchmark", "app.requests", counter, noneDisabled);
+    }
+
+    @Benchmark
+    public String[] timerSeriesNames() {
+        return MackerelMetricIndex.seriesNames("benchmark", "app.requests", timer, noneDisabled);
+    }
+
+    @Benchmark
+    public String[] timerSeriesNamesWithoutPercentiles() {
+        return MackerelMetricIndex.seriesNames("benchmark", "app.requests", timer, percentilesDisabled);
+    }
+}
@@ -0,0 +1,48 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one report cycle over synthetic registries, without any I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MackerelReporterBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private MackerelReporter reporter;
+    private BenchmarkSupport.BlackholeSender sender;
+
+    @Setup
+    public void setup() {
+        MetricRegistry registry = BenchmarkSupport.registry(size);
+        sender = new BenchmarkSupport.BlackholeSender();
+        reporter = MackerelReporter.forRegistry(registry)
+                .prefixedWith("benchmark")
+                .indexMetrics(indexed)
+                .build(sender);
+    }
+
+    @TearDown
+    public void tearDown() {
+        reporter.stop();
+    }
+
+    @Benchmark
+    public void report(Blackhole blackhole) {
+        sender.setBlackhole(blackhole);
+        reporter.report();
+    }
+}
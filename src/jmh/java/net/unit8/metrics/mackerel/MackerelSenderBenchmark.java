@@ -0,0 +1,97 @@
+package net.unit8.metrics.mackerel;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a flush against a local Undertow stub which answers after an injected latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MackerelSenderBenchmark {
+    @Param({"1000", "10000"})
+    public int size;
+
+    @Param({"0", "20"})
+    public long latency;
+
+    @Param({"1", "4"})
+    public int maxConcurrentRequests;
+
+    private Undertow undertow;
+    private MackerelSender sender;
+    private String[] names;
+    private long time;
+
+    @Setup
+    public void setup() throws IOException {
+        int port = findPort();
+        undertow = Undertow.builder()
+                .setHandler(new HttpHandler() {
+                    @Override
+                    public void handleRequest(HttpServerExchange exchange) throws Exception {
+                        if (exchange.isInIoThread()) {
+                            exchange.dispatch(this);
+                            return;
+                        }
+                        exchange.startBlocking();
+                        InputStream in = exchange.getInputStream();
+                        byte[] buf = new byte[8192];
+                        while (in.read(buf) != -1) {
+                            // discard the body
+                        }
+                        if (latency > 0) {
+                            Thread.sleep(latency);
+                        }
+                        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+                        exchange.getResponseSender().send("{\"success\":\"true\"}");
+                    }
+                })
+                .addHttpListener(port, "localhost")
+                .build();
+        undertow.start();
+
+        sender = new MackerelSender("benchmark", "benchmark", "http://localhost:" + port);
+        sender.setMaxConcurrentRequests(maxConcurrentRequests);
+        names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = "benchmark.app.metric" + i + ".count";
+        }
+        time = System.currentTimeMillis() / 1000;
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+        undertow.stop();
+    }
+
+    @Benchmark
+    public void flush() {
+        for (int i = 0; i < size; i++) {
+            sender.send(names[i], i, time);
+        }
+        sender.flush();
+    }
+
+    private static int findPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
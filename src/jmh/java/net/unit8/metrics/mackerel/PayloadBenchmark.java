@@ -0,0 +1,45 @@
+package net.unit8.metrics.mackerel;
+
+import okio.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the encoding of one batch of the tsdb payload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PayloadBenchmark {
+    @Param({"1000", "10000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private MackerelMetricBuffer.Slice slice;
+
+    @Setup
+    public void setup() {
+        MackerelMetricBuffer buffer = new MackerelMetricBuffer();
+        long time = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < size; i++) {
+            buffer.add("benchmark.app.component" + (i % 100) + ".metric" + i + ".p99", i * 1.5, time);
+        }
+        slice = new MackerelMetricBuffer.Slice(buffer, 0, buffer.size());
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        Buffer sink = new Buffer();
+        new MackerelMetricsRequestBody(slice, gzip).writeTo(sink);
+        long size = sink.size();
+        sink.clear();
+        return size;
+    }
+}
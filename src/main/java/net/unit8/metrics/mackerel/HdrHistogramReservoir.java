@@ -0,0 +1,161 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reservoir which records every value into an HdrHistogram and resets on each snapshot.
+ *
+ * Values are recorded by a lock-free {@link Recorder} in constant time and bounded memory.
+ * Taking a snapshot swaps the recorder's interval histogram, so each snapshot holds exactly
+ * the values recorded since the previous one, such as the last minute when the reporter
+ * runs every minute. The reservoir is meant to be read by a single reporter: the histogram of a snapshot
+ * is recycled by the next one, so a snapshot is valid until the next snapshot is taken.
+ * Negative values can't be recorded; they are ignored and counted.
+ *
+ * @author kawasima
+ */
+public class HdrHistogramReservoir implements Reservoir {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Recorder recorder;
+    private final AtomicLong negativeValues = new AtomicLong();
+    private Histogram recycled;
+    private volatile int size;
+
+    /**
+     * Creates a reservoir which keeps 2 significant digits.
+     */
+    public HdrHistogramReservoir() {
+        this(2);
+    }
+
+    /**
+     * Creates a reservoir.
+     *
+     * @param numberOfSignificantValueDigits the precision of the recorded values, between 0 and 5
+     */
+    public HdrHistogramReservoir(int numberOfSignificantValueDigits) {
+        this.recorder = new Recorder(numberOfSignificantValueDigits);
+    }
+
+    /**
+     * Returns the number of values in the last snapshot.
+     *
+     * @return the number of values in the last snapshot
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of negative values which were ignored.
+     *
+     * @return the number of ignored values
+     */
+    public long getNegativeValues() {
+        return negativeValues.get();
+    }
+
+    @Override
+    public void update(long value) {
+        if (value < 0) {
+            negativeValues.incrementAndGet();
+            return;
+        }
+        recorder.recordValue(value);
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        final Histogram interval = recorder.getIntervalHistogram(recycled);
+        recycled = interval;
+        size = (int) Math.min(interval.getTotalCount(), Integer.MAX_VALUE);
+        return new HdrSnapshot(interval);
+    }
+
+    /**
+     * Returns the histogram of a snapshot taken from this kind of reservoir,
+     * so that it can be merged with the histograms of other JVMs.
+     *
+     * @param snapshot a snapshot
+     * @return the histogram, or null if the snapshot isn't taken from a {@link HdrHistogramReservoir}
+     */
+    static Histogram histogramOf(Snapshot snapshot) {
+        return snapshot instanceof HdrSnapshot ? ((HdrSnapshot) snapshot).histogram : null;
+    }
+
+    private static final class HdrSnapshot extends Snapshot {
+        private final Histogram histogram;
+
+        HdrSnapshot(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile))
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            return histogram.getValueAtPercentile(quantile * 100.0);
+        }
+
+        @Override
+        public long[] getValues() {
+            final long[] values = new long[size()];
+            int i = 0;
+            for (HistogramIterationValue value : histogram.recordedValues()) {
+                for (long c = 0; c < value.getCountAtValueIteratedTo() && i < values.length; c++) {
+                    values[i++] = value.getValueIteratedTo();
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(histogram.getTotalCount(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            return histogram.getMaxValue();
+        }
+
+        @Override
+        public double getMean() {
+            return histogram.getMean();
+        }
+
+        @Override
+        public long getMin() {
+            return histogram.getMinValue();
+        }
+
+        @Override
+        public double getStdDev() {
+            return histogram.getStdDeviation();
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, UTF_8));
+            try {
+                for (long value : getValues()) {
+                    out.printf("%d%n", value);
+                }
+            } finally {
+                out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package net.unit8.metrics.mackerel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the batch size and the number of concurrent requests of a sender to what the API absorbs,
+ * with additive increase and multiplicative decrease.
+ *
+ * A response within the target latency grows the batch size by a twentieth of its range,
+ * and the concurrency by one per round of responses. A slower response shrinks the batch size by a quarter.
+ * Failures without a response, such as timeouts, halve the batch size below that of the failed request
+ * and the concurrency; 429 halves the concurrency, and 5xx halves both.
+ * These signs of an overloaded API shrink the settings at most once per round: the responses to the requests
+ * sent before the last decrease were sent with the settings before it, so they don't shrink them again.
+ * 413 keeps the batch size at most half that of the rejected request, and the other client errors,
+ * which tell nothing about the load of the API, are ignored. The settings stay within the bounds.
+ *
+ * @author kawasima
+ */
+class MackerelAdaptiveController {
+    private static final double INCREASE_STEPS = 20;
+    private static final double SLOW_DECREASE = 0.75;
+    private static final double DECREASE = 0.5;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final long targetLatencyNanos;
+    private final double batchIncrease;
+    private double batchSize;
+    private double concurrency;
+    private boolean decreased;
+    private long lastDecreaseNanos;
+    private volatile int currentBatchSize;
+    private volatile int currentConcurrency;
+
+    MackerelAdaptiveController(int minBatchSize, int maxBatchSize, int minConcurrency, int maxConcurrency,
+                               long targetLatency, TimeUnit unit) {
+        if (minBatchSize < 1 || maxBatchSize < minBatchSize)
+            throw new IllegalArgumentException("The batch size must be between 1 and maxBatchSize: " + minBatchSize);
+        if (minConcurrency < 1 || maxConcurrency < minConcurrency)
+            throw new IllegalArgumentException("The concurrency must be between 1 and maxConcurrency: " + minConcurrency);
+        if (targetLatency < 1)
+            throw new IllegalArgumentException("targetLatency must be positive: " + targetLatency);
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyNanos = unit.toNanos(targetLatency);
+        this.batchIncrease = Math.max(1, (maxBatchSize - minBatchSize) / INCREASE_STEPS);
+        // starts low, as a TCP connection does, and grows while the API keeps up
+        this.batchSize = minBatchSize;
+        this.concurrency = minConcurrency;
+        update();
+    }
+
+    /**
+     * Adapts to a response of the API.
+     *
+     * @param status the status code
+     * @param sentAt the {@link System#nanoTime()} when the request was sent
+     * @param nanos  the time from the request to the response
+     * @param series the number of series in the request, or 0 if unknown
+     */
+    synchronized void responded(int status, long sentAt, long nanos, int series) {
+        if (status == 200 && nanos <= targetLatencyNanos) {
+            batchSize += batchIncrease;
+            concurrency += 1 / concurrency;
+            update();
+            return;
+        }
+        if (status == 413) {
+            batchSize = Math.min(batchSize, (series > 0 ? series : batchSize) * DECREASE);
+            update();
+            return;
+        }
+        if (status != 200 && status != 429 && status < 500) {
+            return;
+        }
+        if (!decrease(sentAt)) {
+            return;
+        }
+        if (status == 200) {
+            batchSize *= SLOW_DECREASE;
+        } else if (status == 429) {
+            concurrency *= DECREASE;
+        } else {
+            batchSize *= DECREASE;
+            concurrency *= DECREASE;
+        }
+        update();
+    }
+
+    /**
+     * Adapts to a request which failed without a response.
+     *
+     * @param sentAt the {@link System#nanoTime()} when the request was sent
+     * @param series the number of series in the request, or 0 if unknown
+     */
+    synchronized void failed(long sentAt, int series) {
+        if (!decrease(sentAt)) {
+            return;
+        }
+        batchSize = Math.min(batchSize, series > 0 ? series : batchSize) * DECREASE;
+        concurrency *= DECREASE;
+        update();
+    }
+
+    /**
+     * Starts a decrease, unless the request was sent before the last one.
+     */
+    private boolean decrease(long sentAt) {
+        if (decreased && sentAt - lastDecreaseNanos < 0) {
+            return false;
+        }
+        decreased = true;
+        lastDecreaseNanos = System.nanoTime();
+        return true;
+    }
+
+    private void update() {
+        batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, batchSize));
+        concurrency = Math.max(minConcurrency, Math.min(maxConcurrency, concurrency));
+        currentBatchSize = (int) batchSize;
+        currentConcurrency = (int) concurrency;
+    }
+
+    int getBatchSize() {
+        return currentBatchSize;
+    }
+
+    int getConcurrency() {
+        return currentConcurrency;
+    }
+}
@@ -0,0 +1,491 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.MetricAttribute;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * A local aggregator which merges the series forwarded by many JVMs and posts them once per interval.
+ *
+ * Reporters on the same host send their series to the aggregator through a {@link MackerelForwarder}.
+ * The aggregator keeps the latest value of each series per source, merges the values of the sources
+ * as told by the forwarder when the interval ends, and sends the merged series through a {@link MackerelSender},
+ * so the JVMs share one API call and one set of connections.
+ * A source which sends a series twice within an interval is counted once.
+ * The percentiles and the standard deviation of the histograms and timers backed by a {@link HdrHistogramReservoir}
+ * are taken from the sum of the latest histograms of the sources.
+ * Those of other reservoirs can't be merged from the values of the sources,
+ * so they are sent only when a single source has them, and are logged and counted as unmergeable otherwise.
+ *
+ * <pre>
+ * java -cp metrics-mackerel.jar:... net.unit8.metrics.mackerel.MackerelAggregator 8125 my-service
+ * </pre>
+ * reads the API key from the <code>MACKEREL_API_KEY</code> environment variable.
+ *
+ * @author kawasima
+ */
+public class MackerelAggregator implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MackerelAggregator.class);
+
+    private static final class Sample {
+        double value;
+        long timestamp;
+
+        Sample(double value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final class Series {
+        final MackerelForwarder.MergeOp op;
+        final Map<String, Sample> sources = new HashMap<String, Sample>(4);
+
+        Series(MackerelForwarder.MergeOp op) {
+            this.op = op;
+        }
+
+        /**
+         * Keeps the latest value of the source.
+         */
+        void put(String source, double value, long timestamp) {
+            Sample sample = sources.get(source);
+            if (sample == null) {
+                sources.put(source, new Sample(value, timestamp));
+            } else if (timestamp >= sample.timestamp) {
+                sample.value = value;
+                sample.timestamp = timestamp;
+            }
+        }
+
+        boolean isMergeable() {
+            return op != MackerelForwarder.MergeOp.NONE || sources.size() == 1;
+        }
+
+        double result() {
+            double value = op == MackerelForwarder.MergeOp.MAX ? Double.NEGATIVE_INFINITY
+                    : op == MackerelForwarder.MergeOp.MIN ? Double.POSITIVE_INFINITY : 0;
+            for (Sample sample : sources.values()) {
+                switch (op) {
+                    case MAX:
+                        value = Math.max(value, sample.value);
+                        break;
+                    case MIN:
+                        value = Math.min(value, sample.value);
+                        break;
+                    default:
+                        value += sample.value;
+                }
+            }
+            return op == MackerelForwarder.MergeOp.AVG ? value / sources.size() : value;
+        }
+
+        long timestamp() {
+            long timestamp = Long.MIN_VALUE;
+            for (Sample sample : sources.values()) {
+                timestamp = Math.max(timestamp, sample.timestamp);
+            }
+            return timestamp;
+        }
+    }
+
+    private static final MetricAttribute[] ATTRIBUTES = MetricAttribute.values();
+
+    private static final class HistogramSample {
+        Histogram histogram;
+        long timestamp;
+
+        HistogramSample(Histogram histogram, long timestamp) {
+            this.histogram = histogram;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * The histograms of a histogram or a timer, from which its series of percentiles and standard deviation are taken.
+     */
+    private static final class HistogramSeries {
+        final MetricAttribute[] attributes;
+        final String[] names;
+        final double scale;
+        final Map<String, HistogramSample> sources = new HashMap<String, HistogramSample>(4);
+
+        HistogramSeries(MetricAttribute[] attributes, String[] names, double scale) {
+            this.attributes = attributes;
+            this.names = names;
+            this.scale = scale;
+        }
+
+        /**
+         * Keeps the latest histogram of the source.
+         */
+        void put(String source, Histogram histogram, long timestamp) {
+            HistogramSample sample = sources.get(source);
+            if (sample == null) {
+                sources.put(source, new HistogramSample(histogram, timestamp));
+            } else if (timestamp >= sample.timestamp) {
+                sample.histogram = histogram;
+                sample.timestamp = timestamp;
+            }
+        }
+
+        void addTo(MackerelSender sender) {
+            Histogram merged = null;
+            long timestamp = Long.MIN_VALUE;
+            for (HistogramSample sample : sources.values()) {
+                if (merged == null) {
+                    merged = new Histogram(sample.histogram.getNumberOfSignificantValueDigits());
+                }
+                merged.add(sample.histogram);
+                timestamp = Math.max(timestamp, sample.timestamp);
+            }
+            if (merged == null) {
+                return;
+            }
+            for (int i = 0; i < attributes.length; i++) {
+                sender.add(names[i], value(merged, attributes[i]) * scale, timestamp);
+            }
+        }
+
+        private static double value(Histogram histogram, MetricAttribute attribute) {
+            switch (attribute) {
+                case P50:
+                    return histogram.getValueAtPercentile(50.0);
+                case P75:
+                    return histogram.getValueAtPercentile(75.0);
+                case P95:
+                    return histogram.getValueAtPercentile(95.0);
+                case P98:
+                    return histogram.getValueAtPercentile(98.0);
+                case P99:
+                    return histogram.getValueAtPercentile(99.0);
+                case P999:
+                    return histogram.getValueAtPercentile(99.9);
+                default:
+                    return histogram.getStdDeviation();
+            }
+        }
+    }
+
+    private final MackerelSender sender;
+    private final DatagramChannel channel;
+    private final Thread receiver;
+    private final ScheduledExecutorService flusher;
+    private final Object flushLock = new Object();
+    private Map<String, Series> series = new HashMap<String, Series>();
+    private Map<String, HistogramSeries> histograms = new HashMap<String, HistogramSeries>();
+    private Map<String, Integer> sequences = new HashMap<String, Integer>();
+    private Map<String, Integer> previousSequences = new HashMap<String, Integer>();
+    private long receivedRecords;
+    private long droppedDatagrams;
+    private long unmergeableSeries;
+
+    /**
+     * Creates an aggregator which listens on the given address and sends the merged series through the sender.
+     *
+     * @param bindAddress the address to listen on, usually on the loopback interface
+     * @param sender      the sender of the merged series
+     * @throws IOException if the socket can't be bound
+     */
+    public MackerelAggregator(InetSocketAddress bindAddress, MackerelSender sender) throws IOException {
+        this.sender = sender;
+        this.channel = DatagramChannel.open();
+        channel.socket().bind(bindAddress);
+        this.receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "mackerel-aggregator-receiver");
+        receiver.setDaemon(true);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mackerel-aggregator-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts receiving series and posting the merged series at the given period.
+     *
+     * @param period the interval of the posts
+     * @param unit   the unit of the period
+     */
+    public void start(long period, TimeUnit unit) {
+        receiver.start();
+        flusher.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Unable to report to Mackerel", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Sends the series merged since the previous flush.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            Map<String, Series> merged;
+            Map<String, HistogramSeries> mergedHistograms;
+            synchronized (this) {
+                merged = series;
+                series = new HashMap<String, Series>(Math.max(16, merged.size() * 2));
+                mergedHistograms = histograms;
+                histograms = new HashMap<String, HistogramSeries>(Math.max(16, mergedHistograms.size() * 2));
+                // Forgets the sources which sent nothing for a whole interval
+                previousSequences = sequences;
+                sequences = new HashMap<String, Integer>(Math.max(16, previousSequences.size() * 2));
+            }
+            int sent = 0;
+            int unmergeable = 0;
+            for (Map.Entry<String, Series> entry : merged.entrySet()) {
+                Series s = entry.getValue();
+                if (!s.isMergeable()) {
+                    unmergeable++;
+                    continue;
+                }
+                sender.add(entry.getKey(), s.result(), s.timestamp());
+                sent++;
+            }
+            for (HistogramSeries h : mergedHistograms.values()) {
+                h.addTo(sender);
+                sent += h.names.length;
+            }
+            if (unmergeable > 0) {
+                LOGGER.warn("{} series of percentiles or standard deviations are reported by more than one source"
+                        + " and aren't sent. Back them by HdrHistogramReservoirs to merge them.", unmergeable);
+                synchronized (this) {
+                    unmergeableSeries += unmergeable;
+                }
+            }
+            if (sent == 0) {
+                return;
+            }
+            sender.flush();
+        }
+    }
+
+    private void receive() {
+        final ByteBuffer buffer = ByteBuffer.allocate(65536);
+        while (channel.isOpen()) {
+            buffer.clear();
+            try {
+                channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.warn("Unable to receive forwarded metrics", e);
+                continue;
+            }
+            buffer.flip();
+            try {
+                merge(buffer);
+            } catch (RuntimeException e) {
+                LOGGER.debug("Malformed datagram is ignored", e);
+            }
+        }
+    }
+
+    /**
+     * Merges the records of a datagram.
+     * The records read before a datagram turns out to be truncated are kept.
+     *
+     * @param datagram the datagram written by a {@link MackerelForwarder}
+     */
+    synchronized void merge(ByteBuffer datagram) {
+        if (!datagram.hasRemaining() || datagram.get() != MackerelForwarder.VERSION) {
+            droppedDatagrams++;
+            return;
+        }
+        try {
+            byte[] sourceBytes = new byte[datagram.getShort() & 0xffff];
+            datagram.get(sourceBytes);
+            String source = new String(sourceBytes, MackerelForwarder.UTF_8);
+            checkSequence(source, datagram.getInt());
+            while (datagram.hasRemaining()) {
+                MackerelForwarder.MergeOp op = MackerelForwarder.mergeOp(datagram.get());
+                if (op == MackerelForwarder.MergeOp.HISTOGRAM) {
+                    mergeHistogram(source, datagram);
+                    continue;
+                }
+                byte[] name = new byte[datagram.getShort() & 0xffff];
+                datagram.get(name);
+                double value = datagram.getDouble();
+                long timestamp = datagram.getLong();
+                if (op == null) {
+                    continue;
+                }
+                receivedRecords++;
+                String key = new String(name, MackerelForwarder.UTF_8);
+                Series s = series.get(key);
+                if (s == null) {
+                    s = new Series(op);
+                    series.put(key, s);
+                }
+                s.put(source, value, timestamp);
+            }
+        } catch (BufferUnderflowException e) {
+            droppedDatagrams++;
+        } catch (DataFormatException e) {
+            droppedDatagrams++;
+        }
+    }
+
+    /**
+     * Merges a histogram record: the series names with their attributes, the scale, the timestamp
+     * and the compressed histogram.
+     */
+    private void mergeHistogram(String source, ByteBuffer datagram) throws DataFormatException {
+        final int count = datagram.get() & 0xff;
+        final MetricAttribute[] attributes = new MetricAttribute[count];
+        final String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            final int ordinal = datagram.get() & 0xff;
+            if (ordinal >= ATTRIBUTES.length) {
+                throw new DataFormatException("Unknown attribute: " + ordinal);
+            }
+            attributes[i] = ATTRIBUTES[ordinal];
+            byte[] name = new byte[datagram.getShort() & 0xffff];
+            datagram.get(name);
+            names[i] = new String(name, MackerelForwarder.UTF_8);
+        }
+        final double scale = datagram.getDouble();
+        final long timestamp = datagram.getLong();
+        final int length = datagram.getInt();
+        if (length < 0 || length > datagram.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final byte[] compressed = new byte[length];
+        datagram.get(compressed);
+        final Histogram histogram = Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(compressed), 0);
+        if (count == 0) {
+            return;
+        }
+        receivedRecords++;
+        HistogramSeries h = histograms.get(names[0]);
+        if (h == null) {
+            h = new HistogramSeries(attributes, names, scale);
+            histograms.put(names[0], h);
+        }
+        h.put(source, histogram, timestamp);
+    }
+
+    /**
+     * Counts the datagrams of the source lost between the previous datagram and this one.
+     * A sequence going backwards is a restarted forwarder.
+     */
+    private void checkSequence(String source, int sequence) {
+        Integer last = sequences.get(source);
+        if (last == null) {
+            last = previousSequences.get(source);
+        }
+        if (last != null) {
+            int lost = sequence - last - 1;
+            if (lost > 0) {
+                droppedDatagrams += lost;
+            }
+        }
+        sequences.put(source, sequence);
+    }
+
+    /**
+     * Returns the number of records received since the aggregator was created.
+     *
+     * @return the number of records
+     */
+    synchronized long getReceivedRecords() {
+        return receivedRecords;
+    }
+
+    /**
+     * Returns the number of datagrams which were malformed, truncated, or lost on the way
+     * since the aggregator was created.
+     *
+     * @return the number of datagrams
+     */
+    synchronized long getDroppedDatagrams() {
+        return droppedDatagrams;
+    }
+
+    /**
+     * Returns the number of series which weren't sent because more than one source had them
+     * and their values can't be merged.
+     *
+     * @return the number of series
+     */
+    synchronized long getUnmergeableSeries() {
+        return unmergeableSeries;
+    }
+
+    /**
+     * Stops receiving, and sends the series merged so far.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close the socket", e);
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to report to Mackerel", e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: MackerelAggregator <port> <service name> [base url]");
+            System.exit(1);
+        }
+        String apiKey = System.getenv("MACKEREL_API_KEY");
+        MackerelSender sender = args.length > 2 ?
+                new MackerelSender(args[1], apiKey, args[2]) :
+                new MackerelSender(args[1], apiKey);
+        final MackerelAggregator aggregator = new MackerelAggregator(
+                new InetSocketAddress("127.0.0.1", Integer.parseInt(args[0])), sender);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                aggregator.close();
+            }
+        }));
+        aggregator.start(1, TimeUnit.MINUTES);
+        LOGGER.info("Aggregating metrics on {}", aggregator.getLocalAddress());
+        try {
+            aggregator.receiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
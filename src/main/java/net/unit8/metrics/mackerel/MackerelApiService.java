@@ -1,5 +1,6 @@
 package net.unit8.metrics.mackerel;
 
+import okhttp3.RequestBody;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.Header;
@@ -24,4 +25,36 @@ public interface MackerelApiService {
             @Header("X-Api-Key") String apiKey,
             @Header("User-Agent") String userAgent,
             @Body List<MackerelServiceMetric> serviceMetrics);
+
+    /**
+     * Post the service metrics encoded by the caller to a Mackerel server.
+     *
+     * @param serviceName     the name of the service
+     * @param apiKey          the key of the api
+     * @param contentEncoding the encoding of the body, or null if not encoded
+     * @param serviceMetrics  the JSON array of metric objects
+     * @return Call object
+     */
+    @POST("/api/v0/services/{serviceName}/tsdb")
+    Call<Map<String, String>> postServiceMetrics(
+            @Path("serviceName") String serviceName,
+            @Header("X-Api-Key") String apiKey,
+            @Header("User-Agent") String userAgent,
+            @Header("Content-Encoding") String contentEncoding,
+            @Body RequestBody serviceMetrics);
+
+    /**
+     * Post the host metrics encoded by the caller to a Mackerel server.
+     *
+     * @param apiKey          the key of the api
+     * @param contentEncoding the encoding of the body, or null if not encoded
+     * @param hostMetrics     the JSON array of metric objects with hostId
+     * @return Call object
+     */
+    @POST("/api/v0/tsdb")
+    Call<Map<String, String>> postHostMetrics(
+            @Header("X-Api-Key") String apiKey,
+            @Header("User-Agent") String userAgent,
+            @Header("Content-Encoding") String contentEncoding,
+            @Body RequestBody hostMetrics);
 }
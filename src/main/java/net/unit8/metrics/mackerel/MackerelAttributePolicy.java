@@ -0,0 +1,133 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.MetricAttribute;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the attributes reported for a metric from patterns of metric names.
+ *
+ * A pattern is a regular expression prefixed with <code>regex:</code>, a glob prefixed with <code>glob:</code>,
+ * in which <code>*</code> and <code>?</code> don't cross a dot and <code>**</code> does,
+ * or else a name prefix which matches the name itself and the names below it.
+ * The first matching pattern gives the attributes of a metric; the others have every attribute.
+ * The attributes disabled for the reporter are removed in any case.
+ * The attributes are resolved once per name, and cached as a bit set of {@link MetricAttribute#ordinal()}.
+ *
+ * @author kawasima
+ */
+final class MackerelAttributePolicy {
+    static final int ALL = (1 << MetricAttribute.values().length) - 1;
+    private static final int MAX_CACHED_NAMES = 65536;
+
+    private final Pattern[] patterns;
+    private final int[] masks;
+    private final int disabled;
+    private final ConcurrentMap<String, Integer> cache = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * @param policies                 the attributes reported for each pattern, in the order of precedence
+     * @param disabledMetricAttributes the attributes which aren't reported for any metric
+     */
+    MackerelAttributePolicy(Map<String, Set<MetricAttribute>> policies, Set<MetricAttribute> disabledMetricAttributes) {
+        List<Pattern> patterns = new ArrayList<Pattern>(policies.size());
+        this.masks = new int[policies.size()];
+        int i = 0;
+        for (Map.Entry<String, Set<MetricAttribute>> policy : policies.entrySet()) {
+            patterns.add(compile(policy.getKey()));
+            masks[i++] = mask(policy.getValue());
+        }
+        this.patterns = patterns.toArray(new Pattern[0]);
+        this.disabled = mask(disabledMetricAttributes);
+    }
+
+    /**
+     * Returns the attributes reported for a metric.
+     *
+     * @param name the name of the metric in the registry
+     * @return the bit set of the attributes
+     */
+    int attributes(String name) {
+        if (patterns.length == 0) {
+            return ALL & ~disabled;
+        }
+        Integer attributes = cache.get(name);
+        if (attributes == null) {
+            attributes = resolve(name);
+            if (cache.size() >= MAX_CACHED_NAMES) {
+                cache.clear();
+            }
+            cache.put(name, attributes);
+        }
+        return attributes;
+    }
+
+    private int resolve(String name) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].matcher(name).matches()) {
+                return masks[i] & ~disabled;
+            }
+        }
+        return ALL & ~disabled;
+    }
+
+    static int mask(Set<MetricAttribute> attributes) {
+        int mask = 0;
+        for (MetricAttribute attribute : attributes) {
+            mask |= 1 << attribute.ordinal();
+        }
+        return mask;
+    }
+
+    static boolean isEnabled(int attributes, MetricAttribute attribute) {
+        return (attributes & (1 << attribute.ordinal())) != 0;
+    }
+
+    /**
+     * Compiles a pattern of metric names.
+     *
+     * @param pattern a name prefix, or a glob or regular expression with its prefix
+     * @return the compiled pattern
+     */
+    static Pattern compile(String pattern) {
+        if (pattern.startsWith("regex:")) {
+            return Pattern.compile(pattern.substring("regex:".length()));
+        } else if (pattern.startsWith("glob:")) {
+            return Pattern.compile(globToRegex(pattern.substring("glob:".length())));
+        }
+        return Pattern.compile(Pattern.quote(pattern) + "(\\..*)?");
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literal = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') {
+                continue;
+            }
+            if (i > literal) {
+                regex.append(Pattern.quote(glob.substring(literal, i)));
+            }
+            if (c == '?') {
+                regex.append("[^.]");
+            } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else {
+                regex.append("[^.]*");
+            }
+            literal = i + 1;
+        }
+        if (literal < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literal)));
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,210 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Limits the number of metrics under a name prefix which are reported on their own.
+ *
+ * The activity of each metric, the growth of its count or 1 for a metric without a count,
+ * is tracked by a Space-Saving sketch of a fixed number of slots, so the memory stays bounded
+ * however many names the registry holds. The slots are kept in a min-heap by activity,
+ * which decays on every cycle so that metrics which went quiet give way to active ones.
+ * On each cycle the top-K metrics of the previous cycle are admitted, and free places are given
+ * to the first other metrics; the others are folded into an <code>other</code> aggregate.
+ *
+ * This class is not thread-safe.
+ *
+ * @author kawasima
+ */
+final class MackerelCardinalityGuard {
+    private static final int SLOTS_PER_SERIES = 4;
+    private static final double DECAY = 0.5;
+
+    private final String prefix;
+    private final int maxSeries;
+    private final String[] names;
+    private final double[] activities;
+    private final long[] lastCounts;
+    /** The slots ordered as a min-heap by activity. */
+    private final int[] heap;
+    /** The position of each slot in the heap. */
+    private final int[] positions;
+    private final Map<String, Integer> slots;
+    private int size;
+
+    private Set<String> retained = new HashSet<String>();
+    private int admitted;
+    private int foldedSeries;
+    private long foldedCount;
+    private int foldedRoutes;
+
+    /**
+     * @param prefix    the prefix of the names of the guarded metrics in the registry
+     * @param maxSeries the maximum number of metrics reported on their own
+     */
+    MackerelCardinalityGuard(String prefix, int maxSeries) {
+        if (maxSeries < 1)
+            throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+        this.prefix = prefix;
+        this.maxSeries = maxSeries;
+        int capacity = maxSeries * SLOTS_PER_SERIES;
+        this.names = new String[capacity];
+        this.activities = new double[capacity];
+        this.lastCounts = new long[capacity];
+        this.heap = new int[capacity];
+        this.positions = new int[capacity];
+        this.slots = new HashMap<String, Integer>(capacity * 2);
+    }
+
+    String getPrefix() {
+        return prefix;
+    }
+
+    boolean matches(String name) {
+        return name.startsWith(prefix)
+                && (name.length() == prefix.length() || name.charAt(prefix.length()) == '.');
+    }
+
+    /**
+     * Retains the top-K metrics by the activity recorded so far, then decays the activity.
+     */
+    void beginCycle() {
+        Integer[] bySlot = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            bySlot[i] = i;
+        }
+        Arrays.sort(bySlot, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(activities[o2], activities[o1]);
+            }
+        });
+        Set<String> top = new HashSet<String>();
+        for (int i = 0; i < Math.min(maxSeries, size); i++) {
+            top.add(names[bySlot[i]]);
+        }
+        retained = top;
+        for (int i = 0; i < size; i++) {
+            activities[i] *= DECAY;
+        }
+        admitted = 0;
+        foldedSeries = 0;
+        foldedCount = 0;
+        foldedRoutes = 0;
+    }
+
+    /**
+     * Records the activity of a metric and tells whether it is reported on its own.
+     * Otherwise it is folded into the aggregate.
+     *
+     * @param name   the name of the metric in the registry
+     * @param metric the metric
+     * @param routes the destinations of the metric
+     * @return whether the metric is reported on its own
+     */
+    boolean admit(String name, Metric metric, int routes) {
+        final long count = metric instanceof Counting ? ((Counting) metric).getCount() : 0;
+        record(name, count);
+        if (retained.contains(name) || retained.size() + admitted < maxSeries) {
+            if (!retained.contains(name)) {
+                admitted++;
+            }
+            return true;
+        }
+        foldedSeries++;
+        foldedCount += count;
+        foldedRoutes |= routes;
+        return false;
+    }
+
+    /** The number of metrics folded in this cycle. */
+    int getFoldedSeries() {
+        return foldedSeries;
+    }
+
+    /** The sum of the counts of the metrics folded in this cycle. */
+    long getFoldedCount() {
+        return foldedCount;
+    }
+
+    /** The destinations of the metrics folded in this cycle. */
+    int getFoldedRoutes() {
+        return foldedRoutes;
+    }
+
+    private void record(String name, long count) {
+        Integer slot = slots.get(name);
+        if (slot != null) {
+            activities[slot] += 1 + Math.max(0, count - lastCounts[slot]);
+            lastCounts[slot] = count;
+            siftDown(positions[slot]);
+            return;
+        }
+        int s;
+        double floor = 0;
+        if (size < names.length) {
+            s = size;
+            heap[size] = s;
+            positions[s] = size;
+            size++;
+        } else {
+            // replaces the least active metric, which leaves its activity as the error of the new one
+            s = heap[0];
+            slots.remove(names[s]);
+            floor = activities[s];
+        }
+        names[s] = name;
+        activities[s] = floor + 1;
+        lastCounts[s] = count;
+        slots.put(name, s);
+        siftUp(positions[s]);
+        siftDown(positions[s]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (activities[heap[parent]] <= activities[heap[i]]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        for (;;) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && activities[heap[left]] < activities[heap[smallest]]) {
+                smallest = left;
+            }
+            if (right < size && activities[heap[right]] < activities[heap[smallest]]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int a = heap[i];
+        int b = heap[j];
+        heap[i] = b;
+        heap[j] = a;
+        positions[b] = i;
+        positions[a] = j;
+    }
+}
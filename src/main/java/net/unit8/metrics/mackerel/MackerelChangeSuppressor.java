@@ -0,0 +1,117 @@
+package net.unit8.metrics.mackerel;
+
+/**
+ * Remembers the last sent value of each series, and tells whether a new value is worth sending.
+ *
+ * A value is sent when it differs from the last sent value by more than the epsilon,
+ * or when the heartbeat interval has passed since the last sent value.
+ * The last values are kept in an open-addressing map of primitive columns.
+ * Series which haven't been sent for two heartbeat intervals are purged when the map grows.
+ *
+ * This class is not thread-safe.
+ *
+ * @author kawasima
+ */
+final class MackerelChangeSuppressor {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final double epsilon;
+    private final long heartbeat;
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private double[] lastValues = new double[INITIAL_CAPACITY];
+    private long[] lastTimes = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @param epsilon   the minimum change of a value to be sent
+     * @param heartbeat the interval after which a value is sent even if unchanged, in the unit of timestamps
+     */
+    MackerelChangeSuppressor(double epsilon, long heartbeat) {
+        if (epsilon < 0)
+            throw new IllegalArgumentException("epsilon must not be negative: " + epsilon);
+        if (heartbeat < 1)
+            throw new IllegalArgumentException("heartbeat must be positive: " + heartbeat);
+        this.epsilon = epsilon;
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * Tells whether the value should be sent, and records it as sent if so.
+     *
+     * @param name  the name of the series
+     * @param value the value
+     * @param time  the timestamp
+     * @return true if the value should be sent
+     */
+    boolean shouldSend(String name, double value, long time) {
+        int mask = keys.length - 1;
+        int i = mix(name.hashCode()) & mask;
+        for (String key = keys[i]; key != null; key = keys[i]) {
+            if (key.equals(name)) {
+                double last = lastValues[i];
+                boolean changed = Double.isNaN(value) != Double.isNaN(last) || Math.abs(value - last) > epsilon;
+                if (changed || time - lastTimes[i] >= heartbeat || time < lastTimes[i]) {
+                    lastValues[i] = value;
+                    lastTimes[i] = time;
+                    return true;
+                }
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = name;
+        lastValues[i] = value;
+        lastTimes[i] = time;
+        if (++size * 2 > keys.length) {
+            rehash(time);
+        }
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash(long now) {
+        String[] oldKeys = keys;
+        double[] oldValues = lastValues;
+        long[] oldTimes = lastTimes;
+
+        int live = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null && now - oldTimes[i] < heartbeat * 2) {
+                live++;
+            }
+        }
+        int capacity = oldKeys.length;
+        while (live * 4 > capacity) {
+            capacity *= 2;
+        }
+
+        keys = new String[capacity];
+        lastValues = new double[capacity];
+        lastTimes = new long[capacity];
+        size = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            String key = oldKeys[i];
+            if (key == null || now - oldTimes[i] >= heartbeat * 2) {
+                continue;
+            }
+            int j = mix(key.hashCode()) & mask;
+            while (keys[j] != null) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = key;
+            lastValues[j] = oldValues[i];
+            lastTimes[j] = oldTimes[i];
+            size++;
+        }
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,270 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.MetricAttribute;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sender which forwards series to a {@link MackerelAggregator} over UDP instead of posting them to Mackerel.
+ *
+ * The series of a flush are packed into datagrams of compact records, each of which tells
+ * the aggregator how to merge the series with the same series of other JVMs:
+ * counts and rates are summed, maxima and minima are kept, and the other values are averaged.
+ * The merge is chosen by the attribute code the series name ends with, as the reporter names them.
+ * Percentiles and standard deviations can't be merged from their values, so the histograms and timers
+ * backed by a {@link HdrHistogramReservoir} are forwarded as their compressed interval histograms,
+ * which the aggregator adds up before it takes the percentiles. Those of other reservoirs are forwarded
+ * as values, which the aggregator sends only when a single JVM has them.
+ * Each datagram carries the source of the series and a sequence number, so the aggregator keeps
+ * the latest value of each source and counts the datagrams lost on the way.
+ *
+ * @author kawasima
+ */
+public class MackerelForwarder extends MackerelSender {
+    /** How the aggregator merges the values of a series. */
+    enum MergeOp {
+        SUM, MAX, MIN, AVG,
+        /** Sent only when a single source has the series. */
+        NONE,
+        /** A compressed HdrHistogram, from which the series of percentiles and the standard deviation are taken. */
+        HISTOGRAM
+    }
+
+    static final byte VERSION = 2;
+    static final int MAX_DATAGRAM_SIZE = 8192;
+    static final int MAX_SOURCE_SIZE = 255;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MackerelForwarder.class);
+    private static final MergeOp[] OPS = MergeOp.values();
+    private static final String[] SUM_SUFFIXES = {
+            "." + MetricAttribute.COUNT.getCode(),
+            "." + MetricAttribute.M1_RATE.getCode(),
+            "." + MetricAttribute.M5_RATE.getCode(),
+            "." + MetricAttribute.M15_RATE.getCode(),
+            "." + MetricAttribute.MEAN_RATE.getCode()};
+    private static final String MAX_SUFFIX = "." + MetricAttribute.MAX.getCode();
+    private static final String MIN_SUFFIX = "." + MetricAttribute.MIN.getCode();
+    /** The attributes taken from a forwarded histogram. */
+    static final MetricAttribute[] HISTOGRAM_ATTRIBUTES = {
+            MetricAttribute.P50, MetricAttribute.P75, MetricAttribute.P95, MetricAttribute.P98,
+            MetricAttribute.P99, MetricAttribute.P999, MetricAttribute.STDDEV};
+    private static final String[] NONE_SUFFIXES = {
+            "." + MetricAttribute.P50.getCode(),
+            "." + MetricAttribute.P75.getCode(),
+            "." + MetricAttribute.P95.getCode(),
+            "." + MetricAttribute.P98.getCode(),
+            "." + MetricAttribute.P99.getCode(),
+            "." + MetricAttribute.P999.getCode(),
+            "." + MetricAttribute.STDDEV.getCode()};
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final InetSocketAddress aggregator;
+    private final DatagramChannel channel;
+    private final ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+    private final byte[] source;
+    private int sequence;
+    private ByteBuffer encoded = ByteBuffer.allocate(1024);
+
+    /**
+     * Creates a forwarder to the aggregator listening on the given address,
+     * whose source is this forwarder in this JVM.
+     *
+     * @param aggregator the address of the aggregator, usually on the loopback interface
+     * @throws IOException if the socket can't be opened
+     */
+    public MackerelForwarder(InetSocketAddress aggregator) throws IOException {
+        this(aggregator, ManagementFactory.getRuntimeMXBean().getName() + "#" + INSTANCES.incrementAndGet());
+    }
+
+    /**
+     * Creates a forwarder to the aggregator listening on the given address.
+     * A forwarder which keeps its source across restarts replaces the values it sent before the restart.
+     *
+     * @param aggregator the address of the aggregator, usually on the loopback interface
+     * @param source     the name of the source, unique among the forwarders of the aggregator
+     * @throws IOException if the socket can't be opened
+     */
+    public MackerelForwarder(InetSocketAddress aggregator, String source) throws IOException {
+        super("forwarder", null, null, null, null);
+        this.source = source.getBytes(UTF_8);
+        if (this.source.length > MAX_SOURCE_SIZE)
+            throw new IllegalArgumentException("The source is too long: " + source);
+        this.aggregator = aggregator;
+        this.channel = DatagramChannel.open();
+        putHeader();
+    }
+
+    /**
+     * Writes the version, the source and the sequence number of the datagram.
+     */
+    private void putHeader() {
+        datagram.put(VERSION);
+        datagram.putShort((short) source.length);
+        datagram.put(source);
+        datagram.putInt(sequence);
+    }
+
+    private int headerSize() {
+        return 1 + 2 + source.length + 4;
+    }
+
+    @Override
+    void add(String name, double value, long timestamp) {
+        final int length = name.length();
+        // op, name length, name (at most 3 bytes per char), value, timestamp
+        final int maxRecordSize = 3 + length * 3 + 16;
+        if (maxRecordSize > MAX_DATAGRAM_SIZE - headerSize()) {
+            LOGGER.warn("The name of {} is too long to be forwarded.", name);
+            return;
+        }
+        if (datagram.position() + maxRecordSize > MAX_DATAGRAM_SIZE) {
+            sendDatagram();
+        }
+        datagram.put((byte) mergeOp(name).ordinal());
+        byte[] bytes = isAscii(name) ? null : name.getBytes(UTF_8);
+        datagram.putShort((short) (bytes != null ? bytes.length : length));
+        if (bytes != null) {
+            datagram.put(bytes);
+        } else {
+            for (int i = 0; i < length; i++) {
+                datagram.put((byte) name.charAt(i));
+            }
+        }
+        datagram.putDouble(value);
+        datagram.putLong(timestamp);
+    }
+
+    @Override
+    boolean acceptsSnapshots() {
+        return true;
+    }
+
+    /**
+     * Forwards the interval histogram of a snapshot taken from a {@link HdrHistogramReservoir},
+     * in a record of the series names it is reported as, the scale, the timestamp and the compressed histogram.
+     * A histogram which doesn't fit in a datagram is forwarded as values.
+     */
+    @Override
+    boolean addSnapshot(String[] seriesNames, Snapshot snapshot, double scale, long timestamp) {
+        final Histogram histogram = HdrHistogramReservoir.histogramOf(snapshot);
+        if (histogram == null) {
+            return false;
+        }
+        final byte[][] names = new byte[HISTOGRAM_ATTRIBUTES.length][];
+        int count = 0;
+        // op, number of series, the series, scale, timestamp, length of the histogram
+        int recordSize = 2 + 16 + 4;
+        for (int i = 0; i < HISTOGRAM_ATTRIBUTES.length; i++) {
+            final String name = seriesNames[HISTOGRAM_ATTRIBUTES[i].ordinal()];
+            if (name != null) {
+                names[i] = name.getBytes(UTF_8);
+                recordSize += 3 + names[i].length;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+        final int capacity = histogram.getNeededByteBufferCapacity();
+        if (encoded.capacity() < capacity) {
+            encoded = ByteBuffer.allocate(capacity);
+        }
+        encoded.clear();
+        final int length = histogram.encodeIntoCompressedByteBuffer(encoded);
+        recordSize += length;
+        if (recordSize > MAX_DATAGRAM_SIZE - headerSize()) {
+            return false;
+        }
+        if (datagram.position() + recordSize > MAX_DATAGRAM_SIZE) {
+            sendDatagram();
+        }
+        datagram.put((byte) MergeOp.HISTOGRAM.ordinal());
+        datagram.put((byte) count);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                datagram.put((byte) HISTOGRAM_ATTRIBUTES[i].ordinal());
+                datagram.putShort((short) names[i].length);
+                datagram.put(names[i]);
+            }
+        }
+        datagram.putDouble(scale);
+        datagram.putLong(timestamp);
+        datagram.putInt(length);
+        datagram.put(encoded.array(), 0, length);
+        return true;
+    }
+
+    @Override
+    void flush() {
+        drainPushed();
+        sendDatagram();
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close the socket", e);
+        }
+    }
+
+    private void sendDatagram() {
+        if (datagram.position() <= headerSize()) {
+            return;
+        }
+        datagram.flip();
+        try {
+            channel.send(datagram, aggregator);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to forward metrics to " + aggregator, e);
+        }
+        sequence++;
+        datagram.clear();
+        putHeader();
+    }
+
+    static MergeOp mergeOp(String name) {
+        for (String suffix : SUM_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return MergeOp.SUM;
+            }
+        }
+        for (String suffix : NONE_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return MergeOp.NONE;
+            }
+        }
+        if (name.endsWith(MAX_SUFFIX)) {
+            return MergeOp.MAX;
+        } else if (name.endsWith(MIN_SUFFIX)) {
+            return MergeOp.MIN;
+        }
+        return MergeOp.AVG;
+    }
+
+    static MergeOp mergeOp(byte ordinal) {
+        return ordinal >= 0 && ordinal < OPS.length ? OPS[ordinal] : null;
+    }
+
+    private static boolean isAscii(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
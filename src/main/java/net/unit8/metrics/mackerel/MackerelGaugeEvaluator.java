@@ -0,0 +1,177 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Evaluates gauges concurrently on an executor, and waits for them no longer than a deadline.
+ *
+ * A gauge which misses the deadline is reported with its last value, unless the value is older than
+ * the staleness limit, and its evaluation keeps running: it isn't evaluated again until it returns,
+ * so a hung gauge holds at most one thread. A gauge which misses the deadline on consecutive cycles
+ * is quarantined, and then evaluated only once in a while until it meets the deadline again.
+ *
+ * This class is not thread-safe.
+ *
+ * @author kawasima
+ */
+final class MackerelGaugeEvaluator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MackerelGaugeEvaluator.class);
+    static final int QUARANTINE_MISSES = 3;
+    static final int QUARANTINE_PROBE_CYCLES = 10;
+    private static final long FORGET_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final class State {
+        Future<Double> evaluation;
+        double lastValue = Double.NaN;
+        long lastTime;
+        int misses;
+        boolean quarantined;
+        int skipped;
+        long seen;
+    }
+
+    private final ExecutorService executor;
+    private final long deadlineNanos;
+    private final long maxStalenessMillis;
+    private final Map<String, State> states = new HashMap<String, State>();
+    private volatile int quarantined;
+    private volatile long timeouts;
+
+    MackerelGaugeEvaluator(ExecutorService executor, long deadline, long maxStaleness, TimeUnit unit) {
+        this.executor = executor;
+        this.deadlineNanos = unit.toNanos(deadline);
+        this.maxStalenessMillis = unit.toMillis(maxStaleness);
+    }
+
+    /**
+     * Evaluates the gauges of the entries.
+     *
+     * @param entries the gauges
+     * @param now     the current time in milliseconds
+     * @return the value of each gauge in the order of the entries, or NaN if there is no fresh value
+     * @throws InterruptedIOException if the report thread is interrupted
+     */
+    double[] evaluate(List<MackerelMetricIndex.Entry> entries, long now) throws InterruptedIOException {
+        final State[] evaluated = new State[entries.size()];
+        for (int i = 0; i < evaluated.length; i++) {
+            final MackerelMetricIndex.Entry entry = entries.get(i);
+            State state = states.get(entry.name);
+            if (state == null) {
+                state = new State();
+                states.put(entry.name, state);
+            }
+            state.seen = now;
+            evaluated[i] = state;
+            if (state.evaluation != null && state.evaluation.isDone()) {
+                // a late evaluation still refreshes the last value
+                harvest(state, now);
+            }
+            if (state.evaluation == null && (!state.quarantined || ++state.skipped >= QUARANTINE_PROBE_CYCLES)) {
+                state.skipped = 0;
+                state.evaluation = executor.submit(new Evaluation((Gauge<?>) entry.metric));
+            }
+        }
+
+        final long deadline = System.nanoTime() + deadlineNanos;
+        final double[] values = new double[evaluated.length];
+        for (int i = 0; i < evaluated.length; i++) {
+            final State state = evaluated[i];
+            if (state.evaluation != null) {
+                try {
+                    state.evaluation.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    harvest(state, now);
+                    if (state.quarantined) {
+                        state.quarantined = false;
+                        quarantined--;
+                        LOGGER.info("The gauge {} is released from the quarantine", entries.get(i).name);
+                    }
+                    state.misses = 0;
+                } catch (TimeoutException e) {
+                    timeouts++;
+                    if (++state.misses >= QUARANTINE_MISSES && !state.quarantined) {
+                        state.quarantined = true;
+                        quarantined++;
+                        LOGGER.warn("The gauge {} is quarantined after missing the deadline {} times",
+                                entries.get(i).name, state.misses);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while evaluating gauges");
+                } catch (ExecutionException e) {
+                    // the gauge threw an error
+                    harvest(state, now);
+                }
+            }
+            values[i] = now - state.lastTime <= maxStalenessMillis ? state.lastValue : Double.NaN;
+        }
+        forget(now);
+        return values;
+    }
+
+    private void harvest(State state, long now) {
+        try {
+            final double value = state.evaluation.get();
+            state.lastValue = value;
+            state.lastTime = now;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.debug("Unable to evaluate a gauge", e.getCause());
+        }
+        state.evaluation = null;
+    }
+
+    private void forget(long now) {
+        for (Iterator<State> it = states.values().iterator(); it.hasNext(); ) {
+            final State state = it.next();
+            if (now - state.seen > Math.max(maxStalenessMillis, FORGET_MILLIS) && state.evaluation == null) {
+                if (state.quarantined) {
+                    quarantined--;
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /** The number of gauges in quarantine. */
+    int getQuarantined() {
+        return quarantined;
+    }
+
+    /** The number of evaluations which missed the deadline. */
+    long getTimeouts() {
+        return timeouts;
+    }
+
+    private static final class Evaluation implements Callable<Double> {
+        private final Gauge<?> gauge;
+
+        Evaluation(Gauge<?> gauge) {
+            this.gauge = gauge;
+        }
+
+        @Override
+        public Double call() {
+            try {
+                return MackerelReporter.format(gauge.getValue());
+            } catch (RuntimeException e) {
+                LOGGER.debug("Unable to evaluate a gauge", e);
+                return Double.NaN;
+            }
+        }
+    }
+}
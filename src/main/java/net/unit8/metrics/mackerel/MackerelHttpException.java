@@ -0,0 +1,70 @@
+package net.unit8.metrics.mackerel;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown when the Mackerel API responds with an error status.
+ *
+ * @author kawasima
+ */
+class MackerelHttpException extends IOException {
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    MackerelHttpException(int statusCode, long retryAfterMillis) {
+        super("Fail to send a Mackerel server. status=" + statusCode);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the delay requested by the server with a <code>Retry-After</code> header.
+     *
+     * @return the delay in milliseconds, or 0 if none was requested
+     */
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * Returns whether the request may succeed if it is sent again.
+     * Client errors other than a timeout or a rate limit are not retryable.
+     *
+     * @return whether the request is retryable
+     */
+    boolean isRetryable() {
+        return statusCode < 400 || statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+
+    /**
+     * Parses the value of a <code>Retry-After</code> header, either delay seconds or an HTTP date.
+     *
+     * @param value the value of the header, or null
+     * @return the delay in milliseconds, or 0 if the value is missing or malformed
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+        } catch (NumberFormatException ignore) {
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(value.trim()).getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+}
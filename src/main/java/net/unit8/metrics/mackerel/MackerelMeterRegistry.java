@@ -0,0 +1,192 @@
+package net.unit8.metrics.mackerel;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.NamingConvention;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.step.StepMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricAttribute.COUNT;
+import static com.codahale.metrics.MetricAttribute.MAX;
+import static com.codahale.metrics.MetricAttribute.MEAN;
+
+/**
+ * A Micrometer registry which posts the meters to Mackerel as service metrics once per step.
+ *
+ * The series are named like those of {@link MackerelReporter}: the name of the meter, the values of its tags,
+ * then the code of the statistic, e.g. <code>http.server.requests.GET.200.mean</code>.
+ * Counters report their count of the step, timers and summaries their count, sum, mean, max and
+ * the configured percentiles, and durations are in milliseconds.
+ * The series are posted through a {@link MackerelSender}, which must not be shared with a reporter.
+ *
+ * @author kawasima
+ */
+public class MackerelMeterRegistry extends StepMeterRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MackerelMeterRegistry.class);
+    private static final String SUM = "sum";
+
+    private final MackerelSender sender;
+    private final long stepMillis;
+
+    /**
+     * Creates a registry which posts to the service of the configuration.
+     *
+     * @param config the configuration
+     * @param clock  the clock
+     */
+    public MackerelMeterRegistry(MackerelRegistryConfig config, Clock clock) {
+        this(config, clock, createSender(config));
+    }
+
+    /**
+     * Creates a registry which posts through the given sender.
+     *
+     * @param config the configuration
+     * @param clock  the clock
+     * @param sender the sender of the series
+     */
+    public MackerelMeterRegistry(MackerelRegistryConfig config, Clock clock, MackerelSender sender) {
+        super(config, clock);
+        this.sender = sender;
+        this.stepMillis = config.step().toMillis();
+        config().namingConvention(new MackerelNamingConvention());
+        start(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mackerel-metrics-publisher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static MackerelSender createSender(MackerelRegistryConfig config) {
+        MackerelSender sender = new MackerelSender(config.serviceName(), config.apiKey(), config.baseUrl());
+        sender.setMaxBatchSize(config.batchSize());
+        return sender;
+    }
+
+    @Override
+    protected void publish() {
+        // the end of the step whose values are published
+        final long now = clock.wallTime();
+        final long timestamp = (now - now % stepMillis) / 1000;
+        for (Meter meter : getMeters()) {
+            try {
+                publish(meter, timestamp);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to publish " + meter.getId().getName(), e);
+            }
+        }
+        try {
+            sender.flush();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to report to Mackerel", e);
+        }
+    }
+
+    private void publish(Meter meter, long timestamp) {
+        final String name = seriesName(meter.getId());
+        if (meter instanceof TimeGauge) {
+            add(name, ((TimeGauge) meter).value(getBaseTimeUnit()), timestamp);
+        } else if (meter instanceof Gauge) {
+            add(name, ((Gauge) meter).value(), timestamp);
+        } else if (meter instanceof Counter) {
+            add(name, COUNT.getCode(), ((Counter) meter).count(), timestamp);
+        } else if (meter instanceof FunctionCounter) {
+            add(name, COUNT.getCode(), ((FunctionCounter) meter).count(), timestamp);
+        } else if (meter instanceof Timer) {
+            Timer timer = (Timer) meter;
+            add(name, COUNT.getCode(), timer.count(), timestamp);
+            add(name, SUM, timer.totalTime(getBaseTimeUnit()), timestamp);
+            add(name, MEAN.getCode(), timer.mean(getBaseTimeUnit()), timestamp);
+            add(name, MAX.getCode(), timer.max(getBaseTimeUnit()), timestamp);
+            addPercentiles(name, timer.takeSnapshot(), true, timestamp);
+        } else if (meter instanceof DistributionSummary) {
+            DistributionSummary summary = (DistributionSummary) meter;
+            add(name, COUNT.getCode(), summary.count(), timestamp);
+            add(name, SUM, summary.totalAmount(), timestamp);
+            add(name, MEAN.getCode(), summary.mean(), timestamp);
+            add(name, MAX.getCode(), summary.max(), timestamp);
+            addPercentiles(name, summary.takeSnapshot(), false, timestamp);
+        } else if (meter instanceof FunctionTimer) {
+            FunctionTimer timer = (FunctionTimer) meter;
+            add(name, COUNT.getCode(), timer.count(), timestamp);
+            add(name, SUM, timer.totalTime(getBaseTimeUnit()), timestamp);
+            add(name, MEAN.getCode(), timer.mean(getBaseTimeUnit()), timestamp);
+        } else if (meter instanceof LongTaskTimer) {
+            LongTaskTimer timer = (LongTaskTimer) meter;
+            add(name, "active", timer.activeTasks(), timestamp);
+            add(name, "duration", timer.duration(getBaseTimeUnit()), timestamp);
+        } else {
+            for (Measurement measurement : meter.measure()) {
+                add(name, measurement.getStatistic().getTagValueRepresentation(), measurement.getValue(), timestamp);
+            }
+        }
+    }
+
+    private void addPercentiles(String name, HistogramSnapshot snapshot, boolean time, long timestamp) {
+        for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+            add(name, percentileCode(percentile.percentile()),
+                    time ? percentile.value(getBaseTimeUnit()) : percentile.value(), timestamp);
+        }
+    }
+
+    private void add(String name, String code, double value, long timestamp) {
+        add(name + "." + MackerelNamingConvention.sanitize(code), value, timestamp);
+    }
+
+    private void add(String name, double value, long timestamp) {
+        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+            sender.add(name, value, timestamp);
+        }
+    }
+
+    /**
+     * The name of the meter followed by the values of its tags.
+     */
+    private String seriesName(Meter.Id id) {
+        NamingConvention convention = config().namingConvention();
+        StringBuilder name = new StringBuilder(getConventionName(id));
+        for (Tag tag : id.getConventionTags(convention)) {
+            name.append('.').append(tag.getValue());
+        }
+        return name.toString();
+    }
+
+    /**
+     * Names a percentile as the reporter does, e.g. p50, p95 and p999.
+     */
+    static String percentileCode(double percentile) {
+        String digits = BigDecimal.valueOf(percentile).movePointRight(2).stripTrailingZeros().toPlainString();
+        return "p" + digits.replace(".", "");
+    }
+
+    @Override
+    protected TimeUnit getBaseTimeUnit() {
+        return TimeUnit.MILLISECONDS;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        sender.close();
+    }
+}
@@ -0,0 +1,147 @@
+package net.unit8.metrics.mackerel;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A columnar buffer of data points which is reused from cycle to cycle.
+ *
+ * Each data point is stored as a name id, a value and a time in primitive arrays.
+ * Names are kept in a dictionary together with their JSON-escaped form,
+ * so once the buffer has grown to the size of the registry,
+ * adding data points allocates nothing. Names which weren't added since the previous
+ * {@link #clear()} are evicted from the dictionary, so churning names don't pile up.
+ * A value of {@link Double#NaN} stands for a missing value.
+ *
+ * This class is not thread-safe.
+ *
+ * @author kawasima
+ */
+final class MackerelMetricBuffer {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+    private final List<SerializedString> names = new ArrayList<SerializedString>();
+    /** The cycle in which each name was last added, indexed by name id. */
+    private int[] lastUsed = new int[INITIAL_CAPACITY];
+    private int cycle = 1;
+    private int usedNames;
+    private int[] nameIdColumn = new int[INITIAL_CAPACITY];
+    private double[] valueColumn = new double[INITIAL_CAPACITY];
+    private long[] timeColumn = new long[INITIAL_CAPACITY];
+    private int size;
+
+    void add(String name, double value, long time) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            nameIds.put(name, id);
+            names.add(new SerializedString(name));
+            if (id == lastUsed.length) {
+                lastUsed = Arrays.copyOf(lastUsed, id * 2);
+            }
+        }
+        if (lastUsed[id] != cycle) {
+            lastUsed[id] = cycle;
+            usedNames++;
+        }
+        if (size == nameIdColumn.length) {
+            int capacity = size * 2;
+            nameIdColumn = Arrays.copyOf(nameIdColumn, capacity);
+            valueColumn = Arrays.copyOf(valueColumn, capacity);
+            timeColumn = Arrays.copyOf(timeColumn, capacity);
+        }
+        nameIdColumn[size] = id;
+        valueColumn[size] = value;
+        timeColumn[size] = time;
+        size++;
+    }
+
+    void addAll(MackerelMetricBuffer other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.name(i), other.valueColumn[i], other.timeColumn[i]);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    String name(int index) {
+        return names.get(nameIdColumn[index]).getValue();
+    }
+
+    SerializedString serializedName(int index) {
+        return names.get(nameIdColumn[index]);
+    }
+
+    double value(int index) {
+        return valueColumn[index];
+    }
+
+    long time(int index) {
+        return timeColumn[index];
+    }
+
+    /**
+     * Removes all data points, keeping the columns and the names added in this cycle for the next one.
+     */
+    void clear() {
+        size = 0;
+        if (usedNames < names.size()) {
+            evictUnusedNames();
+        }
+        usedNames = 0;
+        cycle++;
+    }
+
+    int dictionarySize() {
+        return names.size();
+    }
+
+    private void evictUnusedNames() {
+        int kept = 0;
+        for (int id = 0; id < names.size(); id++) {
+            final SerializedString name = names.get(id);
+            if (lastUsed[id] != cycle) {
+                nameIds.remove(name.getValue());
+                continue;
+            }
+            if (kept != id) {
+                names.set(kept, name);
+                nameIds.put(name.getValue(), kept);
+                lastUsed[kept] = cycle;
+            }
+            kept++;
+        }
+        names.subList(kept, names.size()).clear();
+    }
+
+    /**
+     * A range of data points in a buffer, posted as one request.
+     */
+    static final class Slice {
+        final MackerelMetricBuffer buffer;
+        final int from;
+        final int to;
+
+        Slice(MackerelMetricBuffer buffer, int from, int to) {
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        int size() {
+            return to - from;
+        }
+    }
+}
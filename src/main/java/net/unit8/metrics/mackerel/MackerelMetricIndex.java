@@ -0,0 +1,275 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.*;
+import com.codahale.metrics.Timer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.codahale.metrics.MetricAttribute.*;
+
+/**
+ * A flat index of the metrics in a registry with their precomputed Mackerel series names and routes.
+ *
+ * The index listens to the registry, so a metric is filtered and its series names are built
+ * only once when it is added. The report thread scans plain arrays, which are rebuilt
+ * only when metrics have been added or removed since the previous cycle.
+ * When the reporter doesn't keep an index, it still uses {@link #entry(String, Metric)}
+ * to build the entry of each metric on every cycle.
+ *
+ * @author kawasima
+ */
+class MackerelMetricIndex extends MetricRegistryListener.Base {
+    /** The slot of the series name for a value without an attribute, such as a gauge. */
+    static final int VALUE = MetricAttribute.values().length;
+    private static final int SLOTS = VALUE + 1;
+
+    private static final Set<MetricAttribute> METERED_ATTRIBUTES =
+            EnumSet.of(COUNT, M1_RATE, M5_RATE, M15_RATE, MEAN_RATE);
+    private static final Set<MetricAttribute> HISTOGRAM_ATTRIBUTES =
+            EnumSet.of(COUNT, MAX, MEAN, MIN, STDDEV, P50, P75, P95, P98, P99, P999);
+    private static final Set<MetricAttribute> TIMER_ATTRIBUTES =
+            EnumSet.allOf(MetricAttribute.class);
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    /**
+     * A metric with its series names, indexed by {@link MetricAttribute#ordinal()} or {@link #VALUE},
+     * the bit set of its reported attributes, the bit set of the destinations it is routed to,
+     * and the tier it is collected in, or -1 if it is collected on every report.
+     * The name of a disabled attribute is null.
+     */
+    static final class Entry implements Comparable<Entry> {
+        final String name;
+        final Metric metric;
+        final String[] seriesNames;
+        final int attributes;
+        final int routes;
+        final int tier;
+
+        Entry(String name, Metric metric, String[] seriesNames, int attributes, int routes, int tier) {
+            this.name = name;
+            this.metric = metric;
+            this.seriesNames = seriesNames;
+            this.attributes = attributes;
+            this.routes = routes;
+            this.tier = tier;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return name.compareTo(o.name);
+        }
+    }
+
+    private final String prefix;
+    private final MetricFilter filter;
+    private final MackerelAttributePolicy attributePolicy;
+    private final MetricFilter[] routeFilters;
+    private final MetricFilter[] tierFilters;
+    private final Map<String, Entry> gauges = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Entry> counters = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Entry> histograms = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Entry> meters = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Entry> timers = new ConcurrentHashMap<String, Entry>();
+    private volatile boolean dirty = true;
+
+    private Entry[] gaugeEntries = EMPTY;
+    private Entry[] counterEntries = EMPTY;
+    private Entry[] histogramEntries = EMPTY;
+    private Entry[] meterEntries = EMPTY;
+    private Entry[] timerEntries = EMPTY;
+
+    MackerelMetricIndex(String prefix,
+                        MetricFilter filter,
+                        MackerelAttributePolicy attributePolicy,
+                        MetricFilter[] routeFilters,
+                        MetricFilter[] tierFilters) {
+        this.prefix = prefix;
+        this.filter = filter;
+        this.attributePolicy = attributePolicy;
+        this.routeFilters = routeFilters;
+        this.tierFilters = tierFilters;
+    }
+
+    /**
+     * Builds the entry of a metric which has passed the filter of the reporter.
+     *
+     * @param name   the name of the metric in the registry
+     * @param metric the metric
+     * @return the entry, or null if the metric isn't routed to any destination
+     */
+    Entry entry(String name, Metric metric) {
+        int routes = 0;
+        for (int i = 0; i < routeFilters.length; i++) {
+            if (routeFilters[i].matches(name, metric)) {
+                routes |= 1 << i;
+            }
+        }
+        if (routes == 0) {
+            return null;
+        }
+        int tier = -1;
+        for (int i = 0; i < tierFilters.length && tier < 0; i++) {
+            if (tierFilters[i].matches(name, metric)) {
+                tier = i;
+            }
+        }
+        final int attributes = attributePolicy.attributes(name);
+        return new Entry(name, metric, seriesNames(prefix, name, metric, attributes), attributes, routes, tier);
+    }
+
+    /**
+     * Builds the series names of a metric.
+     *
+     * @param prefix                   the prefix of the names, or null
+     * @param name                     the name of the metric in the registry
+     * @param metric                   the metric
+     * @param disabledMetricAttributes the attributes which aren't reported
+     * @return the series names indexed by attribute
+     */
+    static String[] seriesNames(String prefix, String name, Metric metric, Set<MetricAttribute> disabledMetricAttributes) {
+        return seriesNames(prefix, name, metric,
+                MackerelAttributePolicy.ALL & ~MackerelAttributePolicy.mask(disabledMetricAttributes));
+    }
+
+    /**
+     * Builds the series names of a metric.
+     *
+     * @param prefix     the prefix of the names, or null
+     * @param name       the name of the metric in the registry
+     * @param metric     the metric
+     * @param attributes the bit set of the attributes which are reported
+     * @return the series names indexed by attribute
+     */
+    static String[] seriesNames(String prefix, String name, Metric metric, int attributes) {
+        String[] names = new String[SLOTS];
+        if (metric instanceof Gauge) {
+            names[VALUE] = MetricRegistry.name(prefix, name);
+        } else if (metric instanceof Counter) {
+            names[COUNT.ordinal()] = MetricRegistry.name(prefix, name, COUNT.getCode());
+        } else {
+            Set<MetricAttribute> candidates = metric instanceof Timer ? TIMER_ATTRIBUTES
+                    : metric instanceof Histogram ? HISTOGRAM_ATTRIBUTES
+                    : METERED_ATTRIBUTES;
+            for (MetricAttribute attribute : candidates) {
+                if (MackerelAttributePolicy.isEnabled(attributes, attribute)) {
+                    names[attribute.ordinal()] = MetricRegistry.name(prefix, name, attribute.getCode());
+                }
+            }
+        }
+        return names;
+    }
+
+    Entry[] gauges() {
+        refresh();
+        return gaugeEntries;
+    }
+
+    Entry[] counters() {
+        refresh();
+        return counterEntries;
+    }
+
+    Entry[] histograms() {
+        refresh();
+        return histogramEntries;
+    }
+
+    Entry[] meters() {
+        refresh();
+        return meterEntries;
+    }
+
+    Entry[] timers() {
+        refresh();
+        return timerEntries;
+    }
+
+    private void refresh() {
+        if (dirty) {
+            dirty = false;
+            gaugeEntries = sorted(gauges);
+            counterEntries = sorted(counters);
+            histogramEntries = sorted(histograms);
+            meterEntries = sorted(meters);
+            timerEntries = sorted(timers);
+        }
+    }
+
+    private static Entry[] sorted(Map<String, Entry> entries) {
+        Entry[] array = entries.values().toArray(EMPTY);
+        Arrays.sort(array);
+        return array;
+    }
+
+    private void add(Map<String, Entry> entries, String name, Metric metric) {
+        Entry entry = filter.matches(name, metric) ? entry(name, metric) : null;
+        if (entry != null) {
+            String[] names = entry.seriesNames;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] != null) {
+                    names[i] = names[i].intern();
+                }
+            }
+            entries.put(name, entry);
+            dirty = true;
+        }
+    }
+
+    private void remove(Map<String, Entry> entries, String name) {
+        if (entries.remove(name) != null) {
+            dirty = true;
+        }
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        add(gauges, name, gauge);
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        remove(gauges, name);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        add(counters, name, counter);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        remove(counters, name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+        add(histograms, name, histogram);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        remove(histograms, name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+        add(meters, name, meter);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        remove(meters, name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        add(timers, name, timer);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        remove(timers, name);
+    }
+}
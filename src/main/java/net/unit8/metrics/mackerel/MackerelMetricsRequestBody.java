@@ -0,0 +1,128 @@
+package net.unit8.metrics.mackerel;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request body which streams the tsdb payload to the sink.
+ *
+ * Writes <code>[{"name":..,"value":..,"time":..}, ...]</code> with a {@link JsonGenerator}
+ * straight into the OkHttp sink, so no intermediate tree or byte array is built
+ * for the whole batch. Host metrics carry a <code>hostId</code> field in each object.
+ *
+ * @author kawasima
+ */
+class MackerelMetricsRequestBody extends RequestBody {
+    static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    static final String GZIP = "gzip";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final MackerelMetricBuffer.Slice slice;
+    private final SerializedString hostId;
+    private final boolean gzip;
+    private final MackerelSenderMetrics senderMetrics;
+
+    MackerelMetricsRequestBody(MackerelMetricBuffer.Slice slice, boolean gzip) {
+        this(slice, null, gzip, null);
+    }
+
+    MackerelMetricsRequestBody(MackerelMetricBuffer.Slice slice,
+                               SerializedString hostId,
+                               boolean gzip,
+                               MackerelSenderMetrics senderMetrics) {
+        this.slice = slice;
+        this.hostId = hostId;
+        this.gzip = gzip;
+        this.senderMetrics = senderMetrics;
+    }
+
+    /**
+     * Returns the value of the Content-Encoding header for this body.
+     *
+     * @return "gzip" if compressed, otherwise null
+     */
+    String contentEncoding() {
+        return gzip ? GZIP : null;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        if (gzip) {
+            BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+            write(gzipSink);
+            gzipSink.close();
+        } else {
+            write(sink);
+        }
+    }
+
+    private void write(BufferedSink sink) throws IOException {
+        final long start = System.nanoTime();
+        final CountingOutputStream out = new CountingOutputStream(sink.outputStream());
+        JsonGenerator generator = JSON_FACTORY.createGenerator(out);
+        try {
+            generator.writeStartArray();
+            MackerelMetricBuffer buffer = slice.buffer;
+            for (int i = slice.from; i < slice.to; i++) {
+                generator.writeStartObject();
+                if (hostId != null) {
+                    generator.writeFieldName("hostId");
+                    generator.writeString(hostId);
+                }
+                generator.writeFieldName("name");
+                generator.writeString(buffer.serializedName(i));
+                double value = buffer.value(i);
+                if (Double.isNaN(value)) {
+                    generator.writeNullField("value");
+                } else {
+                    generator.writeNumberField("value", value);
+                }
+                generator.writeNumberField("time", buffer.time(i));
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        } finally {
+            generator.close();
+        }
+        if (senderMetrics != null) {
+            senderMetrics.serialized(System.nanoTime() - start, out.count);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package net.unit8.metrics.mackerel;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.config.NamingConvention;
+
+/**
+ * Names meters and tags with the characters Mackerel accepts in the name of a metric.
+ * Names keep their dots, and the other characters are replaced with underscores.
+ *
+ * @author kawasima
+ */
+class MackerelNamingConvention implements NamingConvention {
+    @Override
+    public String name(String name, Meter.Type type, String baseUnit) {
+        return sanitize(name);
+    }
+
+    @Override
+    public String tagKey(String key) {
+        return sanitize(key);
+    }
+
+    @Override
+    public String tagValue(String value) {
+        // a dot in a value would add a level to the name
+        return sanitize(value).replace('.', '_');
+    }
+
+    static String sanitize(String name) {
+        StringBuilder sanitized = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '_' || c == '-') {
+                if (sanitized != null) {
+                    sanitized.append(c);
+                }
+            } else {
+                if (sanitized == null) {
+                    sanitized = new StringBuilder(name.length()).append(name, 0, i);
+                }
+                sanitized.append('_');
+            }
+        }
+        return sanitized != null ? sanitized.toString() : name;
+    }
+}
@@ -0,0 +1,147 @@
+package net.unit8.metrics.mackerel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of data points pushed by many threads and drained by one.
+ *
+ * Producers claim a slot by advancing the tail with a compare-and-set, write the data point
+ * into columnar arrays and publish it by advancing the sequence of the slot.
+ * The consumer reads the published slots in order and hands them back to the producers,
+ * so neither side takes a lock and a push allocates nothing.
+ * A push to a full queue waits at most the given time for the consumer, and a push to a closed queue
+ * fails at once; both count as an overflow.
+ *
+ * @author kawasima
+ */
+class MackerelPushQueue {
+    interface Consumer {
+        void accept(String name, double value, long timestamp);
+    }
+
+    /** The largest capacity, as the capacity is a power of two. */
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private final int capacity;
+    private final int mask;
+    private final long maxBlockNanos;
+    private final String[] names;
+    private final double[] values;
+    private final long[] timestamps;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private volatile boolean closed;
+    private long head;
+
+    /**
+     * @param capacity the capacity, rounded up to a power of two and at least 2,
+     *                 as a slot is told free from published by its sequence
+     * @param maxBlock how long a push waits for room when the queue is full, or 0 to drop the data point at once
+     * @param unit     the unit of the wait
+     */
+    MackerelPushQueue(int capacity, long maxBlock, TimeUnit unit) {
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY + ": " + capacity);
+        this.capacity = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.maxBlockNanos = unit.toNanos(maxBlock);
+        this.names = new String[this.capacity];
+        this.values = new double[this.capacity];
+        this.timestamps = new long[this.capacity];
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Pushes a data point. Safe to call from any thread.
+     *
+     * @return false if the queue is full or closed and the data point is dropped
+     */
+    boolean offer(String name, double value, long timestamp) {
+        int idle = 0;
+        long deadline = 0;
+        for (;;) {
+            if (closed) {
+                overflows.incrementAndGet();
+                return false;
+            }
+            final long t = tail.get();
+            final int i = (int) t & mask;
+            final long sequence = sequences.get(i);
+            if (sequence == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    names[i] = name;
+                    values[i] = value;
+                    timestamps[i] = timestamp;
+                    sequences.lazySet(i, t + 1);
+                    return true;
+                }
+            } else if (sequence < t) {
+                if (idle == 0) {
+                    deadline = System.nanoTime() + maxBlockNanos;
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    overflows.incrementAndGet();
+                    return false;
+                }
+                if (++idle < 64) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(100000L);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the published data points to the consumer, at most the capacity of the queue.
+     *
+     * @param consumer the consumer
+     * @return the number of data points drained
+     */
+    synchronized int drain(Consumer consumer) {
+        int drained = 0;
+        while (drained < capacity) {
+            final long h = head;
+            final int i = (int) h & mask;
+            if (sequences.get(i) != h + 1) {
+                break;
+            }
+            final String name = names[i];
+            final double value = values[i];
+            final long timestamp = timestamps[i];
+            names[i] = null;
+            sequences.lazySet(i, h + capacity);
+            head = h + 1;
+            drained++;
+            consumer.accept(name, value, timestamp);
+        }
+        return drained;
+    }
+
+    /**
+     * Returns the number of data points dropped since the last call.
+     *
+     * @return the number of dropped data points
+     */
+    long takeOverflows() {
+        return overflows.getAndSet(0);
+    }
+
+    /**
+     * Makes the pushes fail at once, including those waiting for room.
+     */
+    void close() {
+        closed = true;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
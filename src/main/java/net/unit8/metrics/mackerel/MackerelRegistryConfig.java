@@ -0,0 +1,65 @@
+package net.unit8.metrics.mackerel;
+
+import io.micrometer.core.instrument.config.MissingRequiredConfigurationException;
+import io.micrometer.core.instrument.step.StepRegistryConfig;
+
+/**
+ * The configuration of a {@link MackerelMeterRegistry}.
+ *
+ * The keys are looked up by {@link #get(String)} under the prefix <code>mackerel</code>,
+ * e.g. <code>mackerel.apiKey</code>. The step and the batch size are those of {@link StepRegistryConfig}.
+ *
+ * <pre>
+ * MackerelRegistryConfig config = new MackerelRegistryConfig() {
+ *     public String get(String key) {
+ *         return properties.getProperty(key);
+ *     }
+ * };
+ * </pre>
+ *
+ * @author kawasima
+ */
+public abstract class MackerelRegistryConfig implements StepRegistryConfig {
+    /** Looks up nothing, so every key has its default. */
+    public static final MackerelRegistryConfig DEFAULT = new MackerelRegistryConfig() {
+        @Override
+        public String get(String key) {
+            return null;
+        }
+    };
+
+    @Override
+    public String prefix() {
+        return "mackerel";
+    }
+
+    /**
+     * @return the key of the api
+     * @throws MissingRequiredConfigurationException if the key is not set
+     */
+    public String apiKey() {
+        String v = get(prefix() + ".apiKey");
+        if (v == null)
+            throw new MissingRequiredConfigurationException("apiKey must be set to report metrics to Mackerel");
+        return v;
+    }
+
+    /**
+     * @return the name of the service the metrics are posted to
+     * @throws MissingRequiredConfigurationException if the name is not set
+     */
+    public String serviceName() {
+        String v = get(prefix() + ".serviceName");
+        if (v == null)
+            throw new MissingRequiredConfigurationException("serviceName must be set to report metrics to Mackerel");
+        return v;
+    }
+
+    /**
+     * @return the base url of the Mackerel API
+     */
+    public String baseUrl() {
+        String v = get(prefix() + ".baseUrl");
+        return v == null ? MackerelSender.DEFAULT_BASE_URL : v;
+    }
+}
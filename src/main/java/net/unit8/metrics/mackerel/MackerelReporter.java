@@ -6,9 +6,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -21,6 +26,39 @@ import static com.codahale.metrics.MetricAttribute.*;
  */
 public class MackerelReporter extends ScheduledReporter {
     private static final EnumSet ALLOWED_TIME_UNITS = EnumSet.of(TimeUnit.DAYS, TimeUnit.HOURS, TimeUnit.MINUTES);
+    private static final int MAX_ROUTES = Integer.SIZE;
+    private static final long ROLLUP_WINDOW_SECONDS = 60;
+    private static final int SNAPSHOT_PARTITION_SIZE = 64;
+
+    private static final MetricAttribute[] METERED_ATTRIBUTES =
+            {COUNT, M1_RATE, M5_RATE, M15_RATE, MEAN_RATE};
+    private static final MetricAttribute[] HISTOGRAM_ATTRIBUTES =
+            {COUNT, MAX, MEAN, MIN, STDDEV, P50, P75, P95, P98, P99, P999};
+    private static final MetricAttribute[] TIMER_ATTRIBUTES =
+            {MAX, MEAN, MIN, STDDEV, P50, P75, P95, P98, P99, P999, COUNT, M1_RATE, M5_RATE, M15_RATE, MEAN_RATE};
+    /** The attributes read from a snapshot. */
+    private static final int SNAPSHOT_ATTRIBUTES = MackerelAttributePolicy.mask(
+            EnumSet.of(MAX, MEAN, MIN, STDDEV, P50, P75, P95, P98, P99, P999));
+    /** The attributes a sender which takes snapshots computes from them. */
+    private static final int MERGED_SNAPSHOT_ATTRIBUTES = MackerelAttributePolicy.mask(
+            EnumSet.of(STDDEV, P50, P75, P95, P98, P99, P999));
+
+    /**
+     * An aggregate of the samples of a series within a rollup window.
+     */
+    public enum Rollup {
+        MIN("min"), MAX("max"), SUM("sum"), COUNT("count"), LAST("last"), AVG("avg");
+
+        private final String code;
+
+        Rollup(String code) {
+            this.code = code;
+        }
+
+        public String getCode() {
+            return code;
+        }
+    }
 
     public static Builder forRegistry(MetricRegistry registry) {
         return new Builder(registry);
@@ -36,6 +74,23 @@ public class MackerelReporter extends ScheduledReporter {
         private ScheduledExecutorService executor;
         private boolean shutdownExecutorOnStop;
         private Set<MetricAttribute> disabledMetricAttributes;
+        private boolean indexed;
+        private final List<MetricFilter> routeFilters;
+        private final List<MackerelSender> routeSenders;
+        private Set<Rollup> rollups;
+        private MetricRegistry selfRegistry;
+        private ExecutorService snapshotExecutor;
+        private int hdrHistogramDigits;
+        private final Map<String, Integer> cardinalityLimits;
+        private String jitterSeed;
+        private int shards;
+        private final Map<String, Set<MetricAttribute>> attributePolicies;
+        private ExecutorService gaugeExecutor;
+        private long gaugeDeadline;
+        private long gaugeMaxStaleness;
+        private TimeUnit gaugeTimeUnit;
+        private final List<MetricFilter> tierFilters;
+        private final List<Long> tierMillis;
 
         private Builder(MetricRegistry registry) {
             this.registry = registry;
@@ -47,6 +102,20 @@ public class MackerelReporter extends ScheduledReporter {
             this.executor = null;
             this.shutdownExecutorOnStop = true;
             this.disabledMetricAttributes = Collections.emptySet();
+            this.indexed = false;
+            this.routeFilters = new ArrayList<MetricFilter>();
+            this.routeSenders = new ArrayList<MackerelSender>();
+            this.rollups = null;
+            this.selfRegistry = null;
+            this.snapshotExecutor = null;
+            this.hdrHistogramDigits = -1;
+            this.cardinalityLimits = new LinkedHashMap<String, Integer>();
+            this.jitterSeed = null;
+            this.shards = 1;
+            this.attributePolicies = new LinkedHashMap<String, Set<MetricAttribute>>();
+            this.gaugeExecutor = null;
+            this.tierFilters = new ArrayList<MetricFilter>();
+            this.tierMillis = new ArrayList<Long>();
         }
 
         public Builder shutdownExecutorOnStop(boolean shutdownExecutorOnStop) {
@@ -89,25 +158,270 @@ public class MackerelReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * Reports only the given attributes of the histograms, meters and timers whose names match the pattern,
+         * such as every percentile of a few SLO timers and only the count and the 1-minute rate of the others.
+         *
+         * The pattern is a regular expression prefixed with <code>regex:</code>, a glob prefixed with
+         * <code>glob:</code>, in which <code>*</code> doesn't cross a dot and <code>**</code> does,
+         * or else a name prefix such as <code>api.endpoints</code>. The first matching pattern applies,
+         * and the metrics which match no pattern report every attribute. Attributes disabled by
+         * {@link #disabledMetricAttributes(Set)} aren't reported in any case. The attributes of a metric are
+         * resolved once per name, and no snapshot is taken of a metric which reports no value of the snapshot.
+         *
+         * @param pattern    the pattern of the names of the metrics in the registry
+         * @param attributes the attributes reported for the matching metrics
+         * @return this builder
+         */
+        public Builder attributesFor(String pattern, Set<MetricAttribute> attributes) {
+            // fails early on a malformed pattern
+            MackerelAttributePolicy.compile(pattern);
+            this.attributePolicies.put(pattern, attributes);
+            return this;
+        }
+
+        /**
+         * Keeps an index of the metrics, updated by a listener on the registry,
+         * instead of looking them up in the registry on every report.
+         * The filter is evaluated once when a metric is added to the registry.
+         *
+         * @param indexed whether the reporter keeps an index of the metrics
+         * @return this builder
+         */
+        public Builder indexMetrics(boolean indexed) {
+            this.indexed = indexed;
+            return this;
+        }
+
+        /**
+         * Samples the metrics at the period the reporter is started with, which may be shorter than a minute,
+         * and sends a one-minute rollup of the samples of each series.
+         * With a single aggregate the rolled up series keeps its name, otherwise the code of
+         * each aggregate is appended to it.
+         *
+         * @param rollups the aggregates sent for each series
+         * @return this builder
+         */
+        public Builder sampleAndRollUp(Set<Rollup> rollups) {
+            this.rollups = EnumSet.copyOf(rollups);
+            return this;
+        }
+
+        /**
+         * Publishes the internal metrics of the reporter and its senders to the given registry,
+         * which may be the reported registry itself.
+         * The reporter publishes the collection time of each metric type.
+         *
+         * @param selfRegistry the registry the internal metrics are published to
+         * @return this builder
+         * @see MackerelSender#instrument(MetricRegistry)
+         */
+        public Builder instrumentWith(MetricRegistry selfRegistry) {
+            this.selfRegistry = selfRegistry;
+            return this;
+        }
+
+        /**
+         * Computes the snapshots of histograms and timers, and the values derived from them, on the given executor,
+         * such as a {@link java.util.concurrent.ForkJoinPool}, instead of the report thread.
+         * The metrics are partitioned among the tasks, and the values are sent in the same order as without the executor.
+         * Histograms or timers which fit in a single partition are still computed on the report thread.
+         * The executor is not shut down by the reporter.
+         *
+         * @param snapshotExecutor the executor the snapshots are computed on
+         * @return this builder
+         */
+        public Builder computeSnapshotsOn(ExecutorService snapshotExecutor) {
+            this.snapshotExecutor = snapshotExecutor;
+            return this;
+        }
+
+        /**
+         * Makes {@link MackerelReporter#timer(String)} and {@link MackerelReporter#histogram(String)}
+         * create metrics backed by a {@link HdrHistogramReservoir}, so that the percentiles sent on each report
+         * reflect only the values recorded since the previous report.
+         *
+         * Metrics created directly on the registry, such as by {@link MetricRegistry#timer(String)},
+         * keep their exponentially decaying reservoir. Create them through the reporter, or register them
+         * with a {@link MetricRegistry.MetricSupplier} which creates a {@link HdrHistogramReservoir}.
+         *
+         * @param numberOfSignificantValueDigits the precision of the recorded values, between 0 and 5
+         * @return this builder
+         */
+        public Builder hdrHistogramReservoirs(int numberOfSignificantValueDigits) {
+            if (numberOfSignificantValueDigits < 0 || numberOfSignificantValueDigits > 5)
+                throw new IllegalArgumentException("The number of significant digits must be between 0 and 5: "
+                        + numberOfSignificantValueDigits);
+            this.hdrHistogramDigits = numberOfSignificantValueDigits;
+            return this;
+        }
+
+        /**
+         * Limits the number of metrics under the name prefix which are reported on their own.
+         *
+         * The most active metrics are kept, measured by the growth of their counts with a sketch of bounded size.
+         * The others are folded into <code>&lt;prefix&gt;.other.count</code>, the sum of their counts,
+         * and <code>&lt;prefix&gt;.other.folded</code>, the number of folded metrics.
+         * No snapshot of a folded metric is computed.
+         * A metric is guarded by the first limit whose prefix matches its name.
+         *
+         * @param namePrefix the prefix of the names of the metrics in the registry, such as <code>api.endpoints</code>
+         * @param maxSeries  the maximum number of metrics reported on their own
+         * @return this builder
+         */
+        public Builder limitCardinality(String namePrefix, int maxSeries) {
+            if (maxSeries < 1)
+                throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+            this.cardinalityLimits.put(namePrefix, maxSeries);
+            return this;
+        }
+
+        /**
+         * Delays each report by a fixed offset within the period, derived from the seed,
+         * so that the reporters of a fleet seeded with their host or service names don't report at the same second.
+         * The timestamps are aligned to the period boundary.
+         *
+         * @param seed the seed of the offset, such as the host name
+         * @return this builder
+         */
+        public Builder jitterBy(String seed) {
+            this.jitterSeed = seed;
+            return this;
+        }
+
+        /**
+         * Splits the metrics into shards by the hash of their names, and collects and sends each shard
+         * at its own offset within the period, so the work of a cycle is spread over the period.
+         * The timestamps of all the shards are aligned to the period boundary.
+         *
+         * @param shards the number of shards
+         * @return this builder
+         */
+        public Builder collectInShards(int shards) {
+            if (shards < 1)
+                throw new IllegalArgumentException("shards must be positive: " + shards);
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * Evaluates the gauges concurrently on the given executor instead of the report thread,
+         * and waits for them no longer than the deadline, so that a slow or hung gauge doesn't hold up the report.
+         *
+         * A gauge which misses the deadline is reported with its last value, unless the value is older than
+         * <code>maxStaleness</code>, and isn't evaluated again until its evaluation returns.
+         * A gauge which misses the deadline 3 times in a row is quarantined: it is evaluated only every 10th report
+         * until it meets the deadline again. Quarantined gauges are logged, and counted in the internal metrics
+         * of {@link #instrumentWith(MetricRegistry)}. The executor is not shut down by the reporter.
+         *
+         * @param gaugeExecutor the executor the gauges are evaluated on, with a thread per gauge that may hang
+         * @param deadline      how long a report waits for the gauges
+         * @param maxStaleness  how long the last value of a gauge is reported in place of a missed one
+         * @param unit          the unit of the deadline and the staleness
+         * @return this builder
+         */
+        public Builder evaluateGaugesOn(ExecutorService gaugeExecutor, long deadline, long maxStaleness, TimeUnit unit) {
+            if (deadline < 0 || maxStaleness < 0)
+                throw new IllegalArgumentException("The deadline and the staleness must not be negative: " + deadline);
+            this.gaugeExecutor = gaugeExecutor;
+            this.gaugeDeadline = deadline;
+            this.gaugeMaxStaleness = maxStaleness;
+            this.gaugeTimeUnit = unit;
+            return this;
+        }
+
+        /**
+         * Collects and sends the metrics matching the filter only every <code>interval</code>
+         * instead of every period, such as per-request timers every minute and capacity gauges every hour.
+         * A metric belongs to the first tier whose filter matches it, and the others are reported every period.
+         * The interval must be a multiple of the period the reporter is started with,
+         * and the timestamps of a tier are aligned to its interval.
+         *
+         * @param filter   the filter of the metrics in the tier
+         * @param interval the interval of the tier
+         * @param unit     the unit of the interval
+         * @return this builder
+         */
+        public Builder tier(MetricFilter filter, long interval, TimeUnit unit) {
+            if (interval < 1)
+                throw new IllegalArgumentException("interval must be positive: " + interval);
+            this.tierFilters.add(filter);
+            this.tierMillis.add(unit.toMillis(interval));
+            return this;
+        }
+
+        /**
+         * Also sends the metrics matching the filter to the given sender.
+         * Metrics are collected once and dispatched to every destination whose filter matches.
+         *
+         * @param filter the filter of the metrics sent to the destination
+         * @param sender the destination
+         * @return this builder
+         */
+        public Builder route(MetricFilter filter, MackerelSender sender) {
+            if (routeFilters.size() >= MAX_ROUTES)
+                throw new IllegalArgumentException("Can't route to more than " + MAX_ROUTES + " destinations");
+            this.routeFilters.add(filter);
+            this.routeSenders.add(sender);
+            return this;
+        }
+
         public MackerelReporter build(MackerelSender mackerel) {
-            return new MackerelReporter(registry,
-                    mackerel,
-                    clock,
-                    prefix,
-                    rateUnit,
-                    durationUnit,
-                    filter,
-                    executor,
-                    shutdownExecutorOnStop,
-                    disabledMetricAttributes);
+            route(MetricFilter.ALL, mackerel);
+            return build();
+        }
+
+        /**
+         * Builds a reporter which sends metrics to the destinations added by {@link #route(MetricFilter, MackerelSender)}.
+         *
+         * @return a reporter
+         */
+        public MackerelReporter build() {
+            if (routeSenders.isEmpty())
+                throw new IllegalStateException("No destination is configured");
+            return new MackerelReporter(this);
         }
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MackerelReporter.class);
 
-    private final MackerelSender mackerel;
+    private final MetricRegistry registry;
+    private final MackerelSender[] senders;
+    /** The routes whose senders take snapshots. */
+    private final int snapshotRoutes;
     private final Clock clock;
-    private final String prefix;
+    private final MackerelMetricIndex index;
+    private final boolean indexed;
+    private final MackerelRollupAccumulator rollup;
+    private final Timer collectGauges;
+    private final Timer collectCounters;
+    private final Timer collectHistograms;
+    private final Timer collectMeters;
+    private final Timer collectTimers;
+    private final ExecutorService snapshotExecutor;
+    private final int hdrHistogramDigits;
+    private final MackerelCardinalityGuard[] guards;
+    private final String[][] foldedNames;
+    private final String jitterSeed;
+    private final int shards;
+    private final MackerelGaugeEvaluator gaugeEvaluator;
+    private final long[] tierMillis;
+    /** Whether each tier is collected by the current cycle. */
+    private final boolean[] dueTiers;
+    private volatile long periodMillis;
+    private volatile long jitterMillis;
+    /** The shard collected by the current cycle. */
+    private int shard;
+    private final MackerelRollupAccumulator.Emitter rollupEmitter = new MackerelRollupAccumulator.Emitter() {
+        @Override
+        public void emit(int routes, String name, double value, long timestamp) {
+            dispatch(routes, name, value, timestamp);
+        }
+    };
+    /** The values of a metric being reported on the report thread, indexed by {@link MetricAttribute#ordinal()}. */
+    private final double[] values = new double[MetricAttribute.values().length];
+    /** The snapshot of a metric being reported on the report thread. */
+    private final Snapshot[] snapshot = new Snapshot[1];
 
     protected MackerelReporter(MetricRegistry registry,
                                MackerelSender mackerel,
@@ -119,18 +433,272 @@ public class MackerelReporter extends ScheduledReporter {
                                ScheduledExecutorService executor,
                                boolean shutdownExecutorOnStop,
                                Set<MetricAttribute> disabledMetricAttributes) {
-        super(registry, "mackerel-reporter", filter, rateUnit, durationUnit, executor, shutdownExecutorOnStop,
-                disabledMetricAttributes);
-        this.mackerel = mackerel;
-        this.clock = clock;
-        this.prefix = prefix;
+        this(forRegistry(registry)
+                        .withClock(clock)
+                        .prefixedWith(prefix)
+                        .convertRatesTo(rateUnit)
+                        .convertDurationsTo(durationUnit)
+                        .filter(filter)
+                        .scheduleOn(executor)
+                        .shutdownExecutorOnStop(shutdownExecutorOnStop)
+                        .disabledMetricAttributes(disabledMetricAttributes)
+                        .route(MetricFilter.ALL, mackerel));
+    }
+
+    private MackerelReporter(Builder builder) {
+        super(builder.registry, "mackerel-reporter", builder.filter, builder.rateUnit, builder.durationUnit,
+                builder.executor, builder.shutdownExecutorOnStop, builder.disabledMetricAttributes);
+        this.registry = builder.registry;
+        this.senders = builder.routeSenders.toArray(new MackerelSender[0]);
+        int snapshotRoutes = 0;
+        for (int i = 0; i < senders.length; i++) {
+            if (senders[i].acceptsSnapshots()) {
+                snapshotRoutes |= 1 << i;
+            }
+        }
+        this.snapshotRoutes = snapshotRoutes;
+        this.clock = builder.clock;
+        this.index = new MackerelMetricIndex(builder.prefix, builder.filter,
+                new MackerelAttributePolicy(builder.attributePolicies, builder.disabledMetricAttributes),
+                builder.routeFilters.toArray(new MetricFilter[0]),
+                builder.tierFilters.toArray(new MetricFilter[0]));
+        this.indexed = builder.indexed;
+        this.snapshotExecutor = builder.snapshotExecutor;
+        this.hdrHistogramDigits = builder.hdrHistogramDigits;
+        this.jitterSeed = builder.jitterSeed;
+        this.shards = builder.shards;
+        this.tierMillis = new long[builder.tierMillis.size()];
+        for (int i = 0; i < tierMillis.length; i++) {
+            tierMillis[i] = builder.tierMillis.get(i);
+        }
+        this.dueTiers = new boolean[tierMillis.length];
+        this.gaugeEvaluator = builder.gaugeExecutor != null ? new MackerelGaugeEvaluator(builder.gaugeExecutor,
+                builder.gaugeDeadline, builder.gaugeMaxStaleness, builder.gaugeTimeUnit) : null;
+        this.guards = new MackerelCardinalityGuard[builder.cardinalityLimits.size()];
+        this.foldedNames = new String[guards.length][];
+        int g = 0;
+        for (Map.Entry<String, Integer> limit : builder.cardinalityLimits.entrySet()) {
+            guards[g] = new MackerelCardinalityGuard(limit.getKey(), limit.getValue());
+            foldedNames[g] = new String[]{
+                    MetricRegistry.name(builder.prefix, limit.getKey(), "other", COUNT.getCode()),
+                    MetricRegistry.name(builder.prefix, limit.getKey(), "other", "folded")};
+            g++;
+        }
+        this.rollup = builder.rollups != null ?
+                new MackerelRollupAccumulator(builder.rollups, ROLLUP_WINDOW_SECONDS) : null;
+        if (builder.selfRegistry != null) {
+            MetricRegistry self = builder.selfRegistry;
+            collectGauges = self.timer(MetricRegistry.name(MackerelReporter.class, "collect", "gauges"));
+            collectCounters = self.timer(MetricRegistry.name(MackerelReporter.class, "collect", "counters"));
+            collectHistograms = self.timer(MetricRegistry.name(MackerelReporter.class, "collect", "histograms"));
+            collectMeters = self.timer(MetricRegistry.name(MackerelReporter.class, "collect", "meters"));
+            collectTimers = self.timer(MetricRegistry.name(MackerelReporter.class, "collect", "timers"));
+            for (MackerelSender sender : senders) {
+                sender.instrument(self);
+            }
+            final MackerelGaugeEvaluator evaluator = gaugeEvaluator;
+            if (evaluator != null) {
+                self.register(MetricRegistry.name(MackerelReporter.class, "gauges", "quarantined"), new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return evaluator.getQuarantined();
+                    }
+                });
+                self.register(MetricRegistry.name(MackerelReporter.class, "gauges", "timeouts"), new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return evaluator.getTimeouts();
+                    }
+                });
+            }
+        } else {
+            collectGauges = collectCounters = collectHistograms = collectMeters = collectTimers = null;
+        }
+        if (indexed) {
+            registry.addListener(index);
+        }
+    }
+
+    /**
+     * Returns the timer registered under the given name, or creates and registers a new one.
+     * A new timer is backed by a {@link HdrHistogramReservoir} when the reporter is built with
+     * {@link Builder#hdrHistogramReservoirs(int)}.
+     *
+     * @param name the name of the timer
+     * @return the timer
+     */
+    public Timer timer(String name) {
+        if (hdrHistogramDigits < 0) {
+            return registry.timer(name);
+        }
+        return registry.timer(name, new MetricRegistry.MetricSupplier<Timer>() {
+            @Override
+            public Timer newMetric() {
+                return new Timer(new HdrHistogramReservoir(hdrHistogramDigits));
+            }
+        });
+    }
+
+    /**
+     * Returns the histogram registered under the given name, or creates and registers a new one.
+     * A new histogram is backed by a {@link HdrHistogramReservoir} when the reporter is built with
+     * {@link Builder#hdrHistogramReservoirs(int)}.
+     *
+     * @param name the name of the histogram
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        if (hdrHistogramDigits < 0) {
+            return registry.histogram(name);
+        }
+        return registry.histogram(name, new MetricRegistry.MetricSupplier<Histogram>() {
+            @Override
+            public Histogram newMetric() {
+                return new Histogram(new HdrHistogramReservoir(hdrHistogramDigits));
+            }
+        });
     }
 
     @Override
     public synchronized void start(long initialDelay, long period, TimeUnit unit) {
-        if (!ALLOWED_TIME_UNITS.contains(unit))
+        if (rollup != null) {
+            long millis = unit.toMillis(period);
+            if (millis < 1000 || millis > rollup.getWindowSeconds() * 1000)
+                throw new IllegalArgumentException("The sampling period must be between a second and the rollup window: "
+                        + period + " " + unit);
+        } else if (!ALLOWED_TIME_UNITS.contains(unit))
             throw new IllegalArgumentException("Can't set the this TimeUnit: " + unit);
-        super.start(initialDelay, period, unit);
+        final long millis = unit.toMillis(period);
+        for (long interval : tierMillis) {
+            if (millis < 1 || interval % millis != 0)
+                throw new IllegalArgumentException("The interval of a tier must be a multiple of the period: "
+                        + interval + " ms");
+        }
+        if (jitterSeed == null && shards == 1 && tierMillis.length == 0) {
+            super.start(initialDelay, period, unit);
+            return;
+        }
+        final long tick = millis / shards;
+        if (tick < 1)
+            throw new IllegalArgumentException("The period is too short for " + shards + " shards: " + millis + " ms");
+        this.periodMillis = millis;
+        this.jitterMillis = jitterSeed != null ? jitterMillis(jitterSeed, millis) : 0;
+        // the first tick at or after the initial delay, at the jitter plus a multiple of the tick
+        final long delay = unit.toMillis(initialDelay);
+        super.start(delay + floorMod(jitterMillis - clock.getTime() - delay, tick), tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Derives the offset of the reports within the period from the seed.
+     *
+     * @param seed   the seed
+     * @param period the period in milliseconds
+     * @return the offset in milliseconds
+     */
+    static long jitterMillis(String seed, long period) {
+        long h = seed.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return floorMod(h, period);
+    }
+
+    private static long floorMod(long x, long y) {
+        return ((x % y) + y) % y;
+    }
+
+    /**
+     * Starts a cycle: chooses the shard and the tiers to collect, and the timestamp of the cycle,
+     * which is aligned to the period boundary when the reports are staggered or tiered.
+     * The time is rounded to the nearest tick of the scheduler first,
+     * so a tick which fires a little early or late still starts its own shard.
+     * A tier is due when the rounded period boundary, without the jitter, is a multiple of its interval,
+     * and every tier is due when the reporter isn't started.
+     *
+     * @return the timestamp of the cycle in epoch seconds
+     */
+    private long tick() {
+        final long now = clock.getTime();
+        final long period = periodMillis;
+        if (period == 0) {
+            shard = 0;
+            Arrays.fill(dueTiers, true);
+            return now / 1000;
+        }
+        final long tickMillis = period / shards;
+        final long sinceJitter = now - jitterMillis + tickMillis / 2;
+        final long nearestTick = sinceJitter - floorMod(sinceJitter, tickMillis);
+        final long sinceBoundary = floorMod(nearestTick, period);
+        final long boundary = nearestTick - sinceBoundary;
+        shard = (int) Math.min(shards - 1, sinceBoundary / tickMillis);
+        for (int i = 0; i < tierMillis.length; i++) {
+            dueTiers[i] = floorMod(boundary, tierMillis[i]) == 0;
+        }
+        return boundary / 1000;
+    }
+
+    private boolean inShard(MackerelMetricIndex.Entry entry) {
+        return periodMillis == 0 || shards == 1 || (entry.name.hashCode() & Integer.MAX_VALUE) % shards == shard;
+    }
+
+    private boolean isDue(MackerelMetricIndex.Entry entry) {
+        return entry.tier < 0 || dueTiers[entry.tier];
+    }
+
+    /**
+     * Stops the reporter. With a rollup, the samples of the open window are rolled up and sent.
+     */
+    @Override
+    public void stop() {
+        try {
+            super.stop();
+        } finally {
+            if (indexed) {
+                registry.removeListener(index);
+            }
+            if (rollup != null) {
+                synchronized (this) {
+                    if (rollup.flush(rollupEmitter)) {
+                        flush();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void report() {
+        if (!indexed) {
+            super.report();
+            return;
+        }
+        synchronized (this) {
+            final long timestamp = tick();
+            beginCycle(timestamp);
+            try {
+                long start = System.nanoTime();
+                reportGauges(admitted(index.gauges()), timestamp);
+                start = collected(collectGauges, start);
+                for (MackerelMetricIndex.Entry entry : index.counters()) {
+                    if (admit(entry)) {
+                        reportCounter(entry, (Counter) entry.metric, timestamp);
+                    }
+                }
+                start = collected(collectCounters, start);
+                reportHistograms(admitted(index.histograms()), timestamp);
+                start = collected(collectHistograms, start);
+                for (MackerelMetricIndex.Entry entry : index.meters()) {
+                    if (admit(entry)) {
+                        reportMetered(entry, (Meter) entry.metric, timestamp);
+                    }
+                }
+                start = collected(collectMeters, start);
+                reportTimers(admitted(index.timers()), timestamp);
+                collected(collectTimers, start);
+                reportFolded(timestamp);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to report to Mackerel", e);
+            }
+            endCycle();
+        }
     }
 
     @Override
@@ -139,97 +707,387 @@ public class MackerelReporter extends ScheduledReporter {
                        SortedMap<String, Histogram> histograms,
                        SortedMap<String, Meter> meters,
                        SortedMap<String, Timer> timers) {
-        final long timestamp = clock.getTime() / 1000;
+        final long timestamp = tick();
+        beginCycle(timestamp);
 
         try {
+            long start = System.nanoTime();
+            final List<MackerelMetricIndex.Entry> gaugeEntries =
+                    new ArrayList<MackerelMetricIndex.Entry>(gauges.size());
             for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
-                reportGauge(entry.getKey(), entry.getValue(), timestamp);
+                MackerelMetricIndex.Entry indexEntry = index.entry(entry.getKey(), entry.getValue());
+                if (indexEntry != null && admit(indexEntry)) {
+                    gaugeEntries.add(indexEntry);
+                }
             }
+            reportGauges(gaugeEntries, timestamp);
+            start = collected(collectGauges, start);
 
             for (Map.Entry<String, Counter> entry : counters.entrySet()) {
-                reportCounter(entry.getKey(), entry.getValue(), timestamp);
+                MackerelMetricIndex.Entry indexEntry = index.entry(entry.getKey(), entry.getValue());
+                if (indexEntry != null && admit(indexEntry)) {
+                    reportCounter(indexEntry, entry.getValue(), timestamp);
+                }
             }
+            start = collected(collectCounters, start);
 
+            final List<MackerelMetricIndex.Entry> histogramEntries =
+                    new ArrayList<MackerelMetricIndex.Entry>(histograms.size());
             for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-                reportHistogram(entry.getKey(), entry.getValue(), timestamp);
+                MackerelMetricIndex.Entry indexEntry = index.entry(entry.getKey(), entry.getValue());
+                if (indexEntry != null && admit(indexEntry)) {
+                    histogramEntries.add(indexEntry);
+                }
             }
+            reportHistograms(histogramEntries, timestamp);
+            start = collected(collectHistograms, start);
 
             for (Map.Entry<String, Meter> entry : meters.entrySet()) {
-                reportMetered(entry.getKey(), entry.getValue(), timestamp);
+                MackerelMetricIndex.Entry indexEntry = index.entry(entry.getKey(), entry.getValue());
+                if (indexEntry != null && admit(indexEntry)) {
+                    reportMetered(indexEntry, entry.getValue(), timestamp);
+                }
             }
+            start = collected(collectMeters, start);
 
+            final List<MackerelMetricIndex.Entry> timerEntries =
+                    new ArrayList<MackerelMetricIndex.Entry>(timers.size());
             for (Map.Entry<String, Timer> entry : timers.entrySet()) {
-                reportTimer(entry.getKey(), entry.getValue(), timestamp);
+                MackerelMetricIndex.Entry indexEntry = index.entry(entry.getKey(), entry.getValue());
+                if (indexEntry != null && admit(indexEntry)) {
+                    timerEntries.add(indexEntry);
+                }
             }
-            mackerel.flush();
+            reportTimers(timerEntries, timestamp);
+            collected(collectTimers, start);
+            reportFolded(timestamp);
         } catch (IOException e) {
-            LOGGER.warn("Unable to report to Mackerel", mackerel, e);
+            LOGGER.warn("Unable to report to Mackerel", e);
+        }
+        endCycle();
+    }
+
+    private static long collected(Timer timer, long start) {
+        final long end = System.nanoTime();
+        if (timer != null) {
+            timer.update(end - start, TimeUnit.NANOSECONDS);
+        }
+        return end;
+    }
+
+    private void beginCycle(long timestamp) {
+        if (shard == 0) {
+            for (MackerelCardinalityGuard guard : guards) {
+                guard.beginCycle();
+            }
+        }
+        if (rollup != null && rollup.advance(timestamp, rollupEmitter)) {
+            flush();
+        }
+    }
+
+    private void endCycle() {
+        if (rollup == null) {
+            flush();
+        }
+    }
+
+    /**
+     * Flushes every destination, so that a failing one doesn't keep the others from being sent.
+     */
+    private void flush() {
+        for (MackerelSender sender : senders) {
+            try {
+                sender.flush();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to report to Mackerel", e);
+            }
+        }
+    }
+
+    /**
+     * Tells whether a metric is collected in this cycle and reported on its own,
+     * rather than left to another shard or a later cycle of its tier, or folded by the cardinality guard of its prefix.
+     */
+    private boolean admit(MackerelMetricIndex.Entry entry) {
+        if (!inShard(entry) || !isDue(entry)) {
+            return false;
+        }
+        for (MackerelCardinalityGuard guard : guards) {
+            if (guard.matches(entry.name)) {
+                return guard.admit(entry.name, entry.metric, entry.routes);
+            }
+        }
+        return true;
+    }
+
+    private List<MackerelMetricIndex.Entry> admitted(MackerelMetricIndex.Entry[] entries) {
+        if (guards.length == 0 && tierMillis.length == 0 && (periodMillis == 0 || shards == 1)) {
+            return Arrays.asList(entries);
+        }
+        final List<MackerelMetricIndex.Entry> admitted = new ArrayList<MackerelMetricIndex.Entry>(entries.length);
+        for (MackerelMetricIndex.Entry entry : entries) {
+            if (admit(entry)) {
+                admitted.add(entry);
+            }
+        }
+        return admitted;
+    }
+
+    private void reportFolded(long timestamp) throws IOException {
+        if (periodMillis != 0 && shard != shards - 1) {
+            return;
+        }
+        for (int g = 0; g < guards.length; g++) {
+            final MackerelCardinalityGuard guard = guards[g];
+            if (guard.getFoldedSeries() > 0) {
+                send(guard.getFoldedRoutes(), foldedNames[g][0], (double) guard.getFoldedCount(), timestamp);
+                send(guard.getFoldedRoutes(), foldedNames[g][1], (double) guard.getFoldedSeries(), timestamp);
+            }
+        }
+    }
+
+    private void reportHistograms(List<MackerelMetricIndex.Entry> entries, long timestamp) throws IOException {
+        reportSnapshots(HISTOGRAM_ATTRIBUTES, entries, 1.0, timestamp);
+    }
+
+    private void reportTimers(List<MackerelMetricIndex.Entry> entries, long timestamp) throws IOException {
+        reportSnapshots(TIMER_ATTRIBUTES, entries, convertDuration(1.0), timestamp);
+    }
+
+    /**
+     * Reports histograms or timers. The snapshots are kept only when a sender takes them.
+     *
+     * @param scale the factor which converts the values of a snapshot to those of the series
+     */
+    private void reportSnapshots(MetricAttribute[] types, List<MackerelMetricIndex.Entry> entries,
+                                 double scale, long timestamp) throws IOException {
+        final boolean keepSnapshots = snapshotRoutes != 0 && rollup == null;
+        if (snapshotExecutor == null || entries.size() <= SNAPSHOT_PARTITION_SIZE) {
+            final Snapshot[] snapshots = keepSnapshots ? snapshot : null;
+            for (MackerelMetricIndex.Entry entry : entries) {
+                snapshot[0] = null;
+                final double[] row = snapshotValues(entry, values, snapshots, 0);
+                if (row != null) {
+                    sendSnapshotValues(types, entry, row, snapshot[0], scale, timestamp);
+                }
+            }
+            snapshot[0] = null;
+            return;
+        }
+        final Snapshot[] snapshots = keepSnapshots ? new Snapshot[entries.size()] : null;
+        final double[][] computed = computeSnapshots(entries, snapshots);
+        for (int i = 0; i < computed.length; i++) {
+            if (computed[i] != null) {
+                sendSnapshotValues(types, entries.get(i), computed[i], snapshots != null ? snapshots[i] : null,
+                        scale, timestamp);
+            }
         }
     }
 
-    private void reportTimer(String name, Timer timer, long timestamp) throws IOException {
+    /**
+     * Sends the values of a histogram or a timer. A sender which takes the snapshot
+     * gets neither the percentiles nor the standard deviation as values.
+     */
+    private void sendSnapshotValues(MetricAttribute[] types, MackerelMetricIndex.Entry entry, double[] row,
+                                    Snapshot snapshot, double scale, long timestamp) throws IOException {
+        int merged = 0;
+        if (snapshot != null) {
+            for (int i = 0; i < senders.length; i++) {
+                final int route = 1 << i;
+                if ((entry.routes & snapshotRoutes & route) != 0
+                        && senders[i].addSnapshot(entry.seriesNames, snapshot, scale, timestamp)) {
+                    merged |= route;
+                }
+            }
+        }
+        if (merged == 0) {
+            sendIfEnabled(types, entry, row, timestamp);
+            return;
+        }
+        for (MetricAttribute type : types) {
+            final String name = entry.seriesNames[type.ordinal()];
+            final int routes = MackerelAttributePolicy.isEnabled(MERGED_SNAPSHOT_ATTRIBUTES, type) ?
+                    entry.routes & ~merged : entry.routes;
+            if (name != null && routes != 0) {
+                send(routes, name, row[type.ordinal()], timestamp);
+            }
+        }
+    }
+
+    /**
+     * Computes the values of a timer or a histogram, so that a failing snapshot skips only its own metric.
+     *
+     * @param snapshots where the snapshot is kept at the given index, or null
+     * @return the values, or null if the snapshot failed
+     */
+    private double[] snapshotValues(MackerelMetricIndex.Entry entry, double[] row, Snapshot[] snapshots, int index) {
+        try {
+            return entry.metric instanceof Timer ?
+                    timerValues(entry, row, snapshots, index) : histogramValues(entry, row, snapshots, index);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to take a snapshot of {}", entry.name, e);
+            return null;
+        }
+    }
+
+    /**
+     * Computes the values of histograms or timers on the snapshot executor, in partitions of consecutive metrics.
+     *
+     * @param entries   the histograms or timers
+     * @param snapshots where the snapshots are kept in the order of the entries, or null
+     * @return the values of each metric, in the order of the entries, or null for a metric whose snapshot failed
+     * @throws IOException if a computation fails or the report thread is interrupted
+     */
+    private double[][] computeSnapshots(final List<MackerelMetricIndex.Entry> entries, final Snapshot[] snapshots)
+            throws IOException {
+        final double[][] computed = new double[entries.size()][];
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int from = 0; from < computed.length; from += SNAPSHOT_PARTITION_SIZE) {
+            final int start = from;
+            final int end = Math.min(from + SNAPSHOT_PARTITION_SIZE, computed.length);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = start; i < end; i++) {
+                        computed[i] = snapshotValues(entries.get(i), new double[MetricAttribute.values().length],
+                                snapshots, i);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : snapshotExecutor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while computing snapshots");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compute snapshots", e.getCause());
+        }
+        return computed;
+    }
+
+    private double[] timerValues(MackerelMetricIndex.Entry entry, double[] values, Snapshot[] snapshots, int index) {
+        final Timer timer = (Timer) entry.metric;
+        if ((entry.attributes & SNAPSHOT_ATTRIBUTES) == 0) {
+            return meteredValues(timer, values);
+        }
         final Snapshot snapshot = timer.getSnapshot();
-        sendIfEnabled(MAX, name, convertDuration(snapshot.getMax()), timestamp);
-        sendIfEnabled(MEAN, name, convertDuration(snapshot.getMean()), timestamp);
-        sendIfEnabled(MIN, name, convertDuration(snapshot.getMin()), timestamp);
-        sendIfEnabled(STDDEV, name, convertDuration(snapshot.getStdDev()), timestamp);
-        sendIfEnabled(P50, name, convertDuration(snapshot.getMedian()), timestamp);
-        sendIfEnabled(P75, name, convertDuration(snapshot.get75thPercentile()), timestamp);
-        sendIfEnabled(P95, name, convertDuration(snapshot.get95thPercentile()), timestamp);
-        sendIfEnabled(P98, name, convertDuration(snapshot.get98thPercentile()), timestamp);
-        sendIfEnabled(P99, name, convertDuration(snapshot.get99thPercentile()), timestamp);
-        sendIfEnabled(P999, name, convertDuration(snapshot.get999thPercentile()), timestamp);
-        reportMetered(name, timer, timestamp);
-    }
-
-    private void reportMetered(String name, Metered meter, long timestamp) throws IOException {
-        sendIfEnabled(COUNT, name, meter.getCount(), timestamp);
-        sendIfEnabled(M1_RATE, name, convertRate(meter.getOneMinuteRate()), timestamp);
-        sendIfEnabled(M5_RATE, name, convertRate(meter.getFiveMinuteRate()), timestamp);
-        sendIfEnabled(M15_RATE, name, convertRate(meter.getFifteenMinuteRate()), timestamp);
-        sendIfEnabled(MEAN_RATE, name, convertRate(meter.getMeanRate()), timestamp);
-    }
-
-    private void reportHistogram(String name, Histogram histogram, long timestamp) throws IOException {
+        if (snapshots != null) {
+            snapshots[index] = snapshot;
+        }
+        values[MAX.ordinal()] = convertDuration(snapshot.getMax());
+        values[MEAN.ordinal()] = convertDuration(snapshot.getMean());
+        values[MIN.ordinal()] = convertDuration(snapshot.getMin());
+        values[STDDEV.ordinal()] = convertDuration(snapshot.getStdDev());
+        values[P50.ordinal()] = convertDuration(snapshot.getMedian());
+        values[P75.ordinal()] = convertDuration(snapshot.get75thPercentile());
+        values[P95.ordinal()] = convertDuration(snapshot.get95thPercentile());
+        values[P98.ordinal()] = convertDuration(snapshot.get98thPercentile());
+        values[P99.ordinal()] = convertDuration(snapshot.get99thPercentile());
+        values[P999.ordinal()] = convertDuration(snapshot.get999thPercentile());
+        return meteredValues(timer, values);
+    }
+
+    private double[] meteredValues(Metered meter, double[] values) {
+        values[COUNT.ordinal()] = meter.getCount();
+        values[M1_RATE.ordinal()] = convertRate(meter.getOneMinuteRate());
+        values[M5_RATE.ordinal()] = convertRate(meter.getFiveMinuteRate());
+        values[M15_RATE.ordinal()] = convertRate(meter.getFifteenMinuteRate());
+        values[MEAN_RATE.ordinal()] = convertRate(meter.getMeanRate());
+        return values;
+    }
+
+    private double[] histogramValues(MackerelMetricIndex.Entry entry, double[] values, Snapshot[] snapshots, int index) {
+        final Histogram histogram = (Histogram) entry.metric;
+        values[COUNT.ordinal()] = histogram.getCount();
+        if ((entry.attributes & SNAPSHOT_ATTRIBUTES) == 0) {
+            return values;
+        }
         final Snapshot snapshot = histogram.getSnapshot();
-        sendIfEnabled(COUNT, name, histogram.getCount(), timestamp);
-        sendIfEnabled(MAX, name, snapshot.getMax(), timestamp);
-        sendIfEnabled(MEAN, name, snapshot.getMean(), timestamp);
-        sendIfEnabled(MIN, name, snapshot.getMin(), timestamp);
-        sendIfEnabled(STDDEV, name, snapshot.getStdDev(), timestamp);
-        sendIfEnabled(P50, name, snapshot.getMedian(), timestamp);
-        sendIfEnabled(P75, name, snapshot.get75thPercentile(), timestamp);
-        sendIfEnabled(P95, name, snapshot.get95thPercentile(), timestamp);
-        sendIfEnabled(P98, name, snapshot.get98thPercentile(), timestamp);
-        sendIfEnabled(P99, name, snapshot.get99thPercentile(), timestamp);
-        sendIfEnabled(P999, name, snapshot.get999thPercentile(), timestamp);
-    }
-
-    private void sendIfEnabled(MetricAttribute type, String name, double value, long timestamp) throws IOException {
-        if (getDisabledMetricAttributes().contains(type)){
+        if (snapshots != null) {
+            snapshots[index] = snapshot;
+        }
+        values[MAX.ordinal()] = snapshot.getMax();
+        values[MEAN.ordinal()] = snapshot.getMean();
+        values[MIN.ordinal()] = snapshot.getMin();
+        values[STDDEV.ordinal()] = snapshot.getStdDev();
+        values[P50.ordinal()] = snapshot.getMedian();
+        values[P75.ordinal()] = snapshot.get75thPercentile();
+        values[P95.ordinal()] = snapshot.get95thPercentile();
+        values[P98.ordinal()] = snapshot.get98thPercentile();
+        values[P99.ordinal()] = snapshot.get99thPercentile();
+        values[P999.ordinal()] = snapshot.get999thPercentile();
+        return values;
+    }
+
+    private void reportMetered(MackerelMetricIndex.Entry entry, Metered meter, long timestamp) throws IOException {
+        sendIfEnabled(METERED_ATTRIBUTES, entry, meteredValues(meter, values), timestamp);
+    }
+
+    private void sendIfEnabled(MetricAttribute[] types, MackerelMetricIndex.Entry entry, double[] values, long timestamp) throws IOException {
+        for (MetricAttribute type : types) {
+            sendIfEnabled(type, entry, values[type.ordinal()], timestamp);
+        }
+    }
+
+    private void sendIfEnabled(MetricAttribute type, MackerelMetricIndex.Entry entry, double value, long timestamp) throws IOException {
+        final String name = entry.seriesNames[type.ordinal()];
+        if (name == null) {
             return;
         }
-        mackerel.send(prefix(name, type.getCode()), format(value), timestamp);
+        send(entry.routes, name, value, timestamp);
+    }
+
+    private void reportCounter(MackerelMetricIndex.Entry entry, Counter counter, long timestamp) throws IOException {
+        send(entry.routes, entry.seriesNames[COUNT.ordinal()], (double) counter.getCount(), timestamp);
     }
 
-    private void sendIfEnabled(MetricAttribute type, String name, long value, long timestamp) throws IOException {
-        if (getDisabledMetricAttributes().contains(type)){
+    private void reportGauges(List<MackerelMetricIndex.Entry> entries, long timestamp) throws IOException {
+        if (gaugeEvaluator == null) {
+            for (MackerelMetricIndex.Entry entry : entries) {
+                reportGauge(entry, format(((Gauge) entry.metric).getValue()), timestamp);
+            }
             return;
         }
-        mackerel.send(prefix(name, type.getCode()), format(value), timestamp);
+        final double[] evaluated = gaugeEvaluator.evaluate(entries, clock.getTime());
+        for (int i = 0; i < evaluated.length; i++) {
+            reportGauge(entries.get(i), evaluated[i], timestamp);
+        }
     }
 
-    private void reportCounter(String name, Counter counter, long timestamp) throws IOException {
-        mackerel.send(prefix(name, COUNT.getCode()), format(counter.getCount()), timestamp);
+    private void reportGauge(MackerelMetricIndex.Entry entry, double value, long timestamp) throws IOException {
+        if (!Double.isNaN(value)) {
+            send(entry.routes, entry.seriesNames[MackerelMetricIndex.VALUE], value, timestamp);
+        }
     }
 
-    private void reportGauge(String name, Gauge gauge, long timestamp) throws IOException {
-        final Double value = format(gauge.getValue());
-        if (value != null) {
-            mackerel.send(prefix(name), value, timestamp);
+    private void send(int routes, String name, double value, long timestamp) throws IOException {
+        if (rollup != null) {
+            rollup.add(routes, name, value);
+        } else {
+            dispatch(routes, name, value, timestamp);
         }
     }
-    private Double format(Object o) {
+
+    private void dispatch(int routes, String name, double value, long timestamp) {
+        for (int i = 0; i < senders.length; i++) {
+            if ((routes & (1 << i)) != 0) {
+                senders[i].add(name, value, timestamp);
+            }
+        }
+    }
+
+    /**
+     * Converts the value of a gauge to a double.
+     *
+     * @param o the value of a gauge
+     * @return the converted value, or NaN if the value is not a number
+     */
+    static double format(Object o) {
         if (o instanceof Float) {
             return ((Float) o).doubleValue();
         } else if (o instanceof Double) {
@@ -249,10 +1107,6 @@ public class MackerelReporter extends ScheduledReporter {
         } else if (o instanceof Boolean) {
             return ((Boolean) o) ? 1.0 : 0.0;
         }
-        return null;
-    }
-
-    private String prefix(String... components) {
-        return MetricRegistry.name(prefix, components);
+        return Double.NaN;
     }
 }
@@ -0,0 +1,230 @@
+package net.unit8.metrics.mackerel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * A bounded queue of encoded batches waiting to be retried.
+ *
+ * Each batch is retried after a jittered exponential backoff, or not before the delay requested
+ * by the server, which also holds back every other batch. The queued payloads never exceed
+ * the byte budget: the oldest batches are evicted to make room for new ones.
+ * A batch which failed first more than the maximum age ago expires.
+ * Times are in milliseconds of a monotonic clock given by the caller.
+ *
+ * @author kawasima
+ */
+class MackerelRetryQueue {
+    static final class Entry {
+        final byte[] payload;
+        final int count;
+        final long firstFailure;
+        int attempts;
+        long nextAttempt;
+
+        private Entry(byte[] payload, int count, long firstFailure) {
+            this.payload = payload;
+            this.count = count;
+            this.firstFailure = firstFailure;
+        }
+    }
+
+    private static final Comparator<Entry> BY_NEXT_ATTEMPT = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return o1.nextAttempt < o2.nextAttempt ? -1 : (o1.nextAttempt == o2.nextAttempt ? 0 : 1);
+        }
+    };
+
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final long maxAge;
+    private final long maxBytes;
+    private final Random random;
+    private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>(16, BY_NEXT_ATTEMPT);
+    /** The bytes of the queued entries and of the entries being retried. */
+    private long bytes;
+    private long notBefore;
+
+    MackerelRetryQueue(long initialBackoff, long maxBackoff, long maxAge, long maxBytes, Random random) {
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+        this.random = random;
+    }
+
+    /**
+     * Queues a batch which failed for the first time.
+     *
+     * @param payload    the encoded batch
+     * @param count      the number of series in the batch
+     * @param now        the current time
+     * @param retryAfter the delay requested by the server, or 0
+     * @return the entries evicted to stay within the byte budget, which may include the new one
+     */
+    synchronized List<Entry> offer(byte[] payload, int count, long now, long retryAfter) {
+        Entry entry = new Entry(payload, count, now);
+        if (payload.length > maxBytes) {
+            return Collections.singletonList(entry);
+        }
+        List<Entry> evicted = new ArrayList<Entry>(0);
+        while (bytes + payload.length > maxBytes) {
+            Entry oldest = oldest();
+            if (oldest == null) {
+                // the rest of the budget is held by the entries being retried
+                evicted.add(entry);
+                return evicted;
+            }
+            entries.remove(oldest);
+            bytes -= oldest.payload.length;
+            evicted.add(oldest);
+        }
+        bytes += payload.length;
+        schedule(entry, now, retryAfter);
+        return evicted;
+    }
+
+    /**
+     * Takes the entry whose retry is due. It keeps its share of the budget
+     * until it is rescheduled or {@link #done(Entry)}.
+     *
+     * @param now the current time
+     * @return the entry, or null if no retry is due
+     */
+    synchronized Entry poll(long now) {
+        if (now < notBefore) {
+            return null;
+        }
+        Entry head = entries.peek();
+        if (head == null || head.nextAttempt > now) {
+            return null;
+        }
+        return entries.poll();
+    }
+
+    /**
+     * Queues an entry whose retry failed again, unless it has expired.
+     *
+     * @param entry      the entry
+     * @param now        the current time
+     * @param retryAfter the delay requested by the server, or 0
+     * @return false if the entry has expired and is released
+     */
+    synchronized boolean reschedule(Entry entry, long now, long retryAfter) {
+        if (now - entry.firstFailure >= maxAge) {
+            bytes -= entry.payload.length;
+            return false;
+        }
+        entry.attempts++;
+        schedule(entry, now, retryAfter);
+        return true;
+    }
+
+    synchronized void done(Entry entry) {
+        bytes -= entry.payload.length;
+    }
+
+    /**
+     * Returns how long the server asked to hold back every request, new batches included.
+     *
+     * @param now the current time
+     * @return the remaining delay, or 0 if requests may be sent
+     */
+    synchronized long heldBackFor(long now) {
+        return Math.max(0, notBefore - now);
+    }
+
+    /**
+     * Takes over the queued entries of the queue this one replaces, keeping their schedule,
+     * as long as they fit in the byte budget. The entries being retried stay with the previous queue.
+     *
+     * @param previous the replaced queue
+     * @return the entries which don't fit in the byte budget
+     */
+    List<Entry> takeOver(MackerelRetryQueue previous) {
+        final List<Entry> taken;
+        final long previousNotBefore;
+        synchronized (previous) {
+            taken = new ArrayList<Entry>(previous.entries);
+            for (Entry entry : taken) {
+                previous.bytes -= entry.payload.length;
+            }
+            previous.entries.clear();
+            previousNotBefore = previous.notBefore;
+        }
+        Collections.sort(taken, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                // the newest first, so that the oldest are the ones left out
+                return o1.firstFailure > o2.firstFailure ? -1 : (o1.firstFailure == o2.firstFailure ? 0 : 1);
+            }
+        });
+        List<Entry> evicted = new ArrayList<Entry>(0);
+        synchronized (this) {
+            notBefore = Math.max(notBefore, previousNotBefore);
+            for (Entry entry : taken) {
+                if (bytes + entry.payload.length > maxBytes) {
+                    evicted.add(entry);
+                } else {
+                    bytes += entry.payload.length;
+                    entries.add(entry);
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes the queued entries which have expired.
+     *
+     * @param now the current time
+     * @return the number of series in the expired entries
+     */
+    synchronized int expire(long now) {
+        int count = 0;
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (now - entry.firstFailure >= maxAge) {
+                it.remove();
+                bytes -= entry.payload.length;
+                count += entry.count;
+            }
+        }
+        return count;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void schedule(Entry entry, long now, long retryAfter) {
+        long backoff = entry.attempts < Long.numberOfLeadingZeros(initialBackoff) - 1 ?
+                Math.min(maxBackoff, initialBackoff << entry.attempts) : maxBackoff;
+        long jittered = backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+        entry.nextAttempt = now + Math.max(jittered, retryAfter);
+        if (retryAfter > 0) {
+            notBefore = Math.max(notBefore, now + retryAfter);
+        }
+        entries.add(entry);
+    }
+
+    private Entry oldest() {
+        Entry oldest = null;
+        for (Entry entry : entries) {
+            if (oldest == null || entry.firstFailure < oldest.firstFailure) {
+                oldest = entry;
+            }
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,186 @@
+package net.unit8.metrics.mackerel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Accumulates samples of each series within a window, and rolls them up into one value per aggregate.
+ *
+ * Series are kept in primitive columns (min, max, sum, count and last) which are reused from window to window.
+ * A series which has no sample in a window isn't rolled up, and its slot is freed for other series.
+ *
+ * This class is not thread-safe.
+ *
+ * @author kawasima
+ */
+final class MackerelRollupAccumulator {
+    interface Emitter {
+        void emit(int routes, String name, double value, long timestamp);
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final MackerelReporter.Rollup[] rollups;
+    private final boolean suffixed;
+    private final long windowSeconds;
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private String[][] names = new String[INITIAL_CAPACITY][];
+    private int[] routes = new int[INITIAL_CAPACITY];
+    private double[] min = new double[INITIAL_CAPACITY];
+    private double[] max = new double[INITIAL_CAPACITY];
+    private double[] sum = new double[INITIAL_CAPACITY];
+    private long[] count = new long[INITIAL_CAPACITY];
+    private double[] last = new double[INITIAL_CAPACITY];
+    private long window = -1;
+
+    /**
+     * @param rollups       the aggregates sent for each series; a single aggregate keeps the name of the series
+     * @param windowSeconds the length of a window
+     */
+    MackerelRollupAccumulator(Set<MackerelReporter.Rollup> rollups, long windowSeconds) {
+        if (rollups.isEmpty())
+            throw new IllegalArgumentException("No rollup is selected");
+        this.rollups = rollups.toArray(new MackerelReporter.Rollup[0]);
+        this.suffixed = this.rollups.length > 1;
+        this.windowSeconds = windowSeconds;
+    }
+
+    long getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    /**
+     * Starts the window of the timestamp. If it differs from the current window,
+     * the current window is rolled up and emitted first.
+     *
+     * @param timestamp the timestamp of the samples to be added, in seconds
+     * @param emitter   receives the rolled up values, stamped with the start of their window
+     * @return true if a window has been emitted
+     */
+    boolean advance(long timestamp, Emitter emitter) {
+        long current = timestamp - timestamp % windowSeconds;
+        if (current == window) {
+            return false;
+        }
+        boolean emitted = window >= 0 && emit(emitter);
+        window = current;
+        return emitted;
+    }
+
+    /**
+     * Rolls up and emits the current window, even though it isn't over, as when the reporter stops.
+     *
+     * @param emitter receives the rolled up values, stamped with the start of their window
+     * @return true if a window has been emitted
+     */
+    boolean flush(Emitter emitter) {
+        boolean emitted = window >= 0 && emit(emitter);
+        window = -1;
+        return emitted;
+    }
+
+    private boolean emit(Emitter emitter) {
+        boolean emitted = false;
+        for (int slot = 0; slot < slots.size(); ) {
+            if (count[slot] == 0) {
+                // the series had no sample for a whole window, as when it was removed from the registry
+                evict(slot);
+                continue;
+            }
+            for (int i = 0; i < rollups.length; i++) {
+                emitter.emit(routes[slot], names[slot][i], value(rollups[i], slot), window);
+            }
+            count[slot] = 0;
+            emitted = true;
+            slot++;
+        }
+        return emitted;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    void add(int routes, String name, double value) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = newSlot(name);
+        }
+        this.routes[slot] = routes;
+        if (count[slot] == 0) {
+            min[slot] = value;
+            max[slot] = value;
+            sum[slot] = value;
+        } else {
+            min[slot] = Math.min(min[slot], value);
+            max[slot] = Math.max(max[slot], value);
+            sum[slot] += value;
+        }
+        count[slot]++;
+        last[slot] = value;
+    }
+
+    private double value(MackerelReporter.Rollup rollup, int slot) {
+        switch (rollup) {
+            case MIN:
+                return min[slot];
+            case MAX:
+                return max[slot];
+            case SUM:
+                return sum[slot];
+            case COUNT:
+                return count[slot];
+            case AVG:
+                return sum[slot] / count[slot];
+            default:
+                return last[slot];
+        }
+    }
+
+    private int newSlot(String name) {
+        int slot = slots.size();
+        if (slot == names.length) {
+            int capacity = slot * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            names = Arrays.copyOf(names, capacity);
+            routes = Arrays.copyOf(routes, capacity);
+            min = Arrays.copyOf(min, capacity);
+            max = Arrays.copyOf(max, capacity);
+            sum = Arrays.copyOf(sum, capacity);
+            count = Arrays.copyOf(count, capacity);
+            last = Arrays.copyOf(last, capacity);
+        }
+        String[] rollupNames = new String[rollups.length];
+        for (int i = 0; i < rollups.length; i++) {
+            rollupNames[i] = suffixed ? name + "." + rollups[i].getCode() : name;
+        }
+        keys[slot] = name;
+        names[slot] = rollupNames;
+        slots.put(name, slot);
+        return slot;
+    }
+
+    /**
+     * Frees the slot by moving the last slot into it.
+     */
+    private void evict(int slot) {
+        int lastSlot = slots.size() - 1;
+        slots.remove(keys[slot]);
+        if (slot != lastSlot) {
+            keys[slot] = keys[lastSlot];
+            names[slot] = names[lastSlot];
+            routes[slot] = routes[lastSlot];
+            min[slot] = min[lastSlot];
+            max[slot] = max[lastSlot];
+            sum[slot] = sum[lastSlot];
+            count[slot] = count[lastSlot];
+            last[slot] = last[lastSlot];
+            slots.put(keys[slot], slot);
+        }
+        keys[lastSlot] = null;
+        names[lastSlot] = null;
+    }
+}
@@ -1,38 +1,173 @@
 package net.unit8.metrics.mackerel;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.fasterxml.jackson.core.io.SerializedString;
 import net.jodah.failsafe.CircuitBreaker;
 import net.jodah.failsafe.Failsafe;
 import net.jodah.failsafe.function.CheckedRunnable;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.jackson.JacksonConverterFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MackerelSender {
-    private static final String DEFAULT_BASE_URL = "https://api.mackerelio.com";
+    /**
+     * What an asynchronous flush does when the in-flight window is full.
+     */
+    public enum OverflowPolicy {
+        /** Drops the oldest flush which is waiting to be sent. */
+        DROP_OLDEST,
+        /** Appends the metrics to the newest flush which is waiting to be sent. */
+        COALESCE,
+        /** Writes the metrics to the spool, to be replayed by the drainer. */
+        SPOOL
+    }
+
+    /**
+     * What {@link #send(String, double, long)} does when the push buffer is full.
+     */
+    public enum PushOverflowPolicy {
+        /** Drops the new data point. */
+        DROP_NEWEST,
+        /** Waits, at most a second, until a flush makes room for the new data point, then drops it. */
+        BLOCK
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MackerelSender.class);
+    static final String DEFAULT_BASE_URL = "https://api.mackerelio.com";
+    private static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    private static final long DEFAULT_MAX_BATCH_BYTES = 512 * 1024;
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    private static final int DEFAULT_MAX_REPLAYS_PER_SECOND = 10;
+    private static final long RETRY_TICK_MILLIS = 100;
+    private static final int DEFAULT_PUSH_CAPACITY = 8192;
+    private static final long DEFAULT_PUSH_MAX_BLOCK_MILLIS = 1000;
+    /** The approximate size of <code>{"name":"","value":0.0,"time":0}</code> with a typical value. */
+    private static final int METRIC_JSON_OVERHEAD = 64;
+
     private final MackerelApiService apiService;
-    private final List<MackerelServiceMetric> metrics;
+    private MackerelMetricBuffer metrics;
     private final String serviceName;
+    private final SerializedString hostId;
     private final String apiKey;
     private final CircuitBreaker circuitBreaker;
     private String userAgent;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    private ExecutorService batchExecutor;
+    private volatile MackerelAdaptiveController adaptiveController;
+    private boolean gzipEnabled = false;
+    private MackerelChangeSuppressor changeSuppressor;
+    private volatile MackerelSpool spool;
+    private volatile int maxReplaysPerSecond;
+    private ScheduledExecutorService spoolDrainer;
+    private volatile MackerelRetryQueue retryQueue;
+    private ScheduledExecutorService retryScheduler;
+    private volatile ExecutorService ioExecutor;
+    private volatile int maxInFlightFlushes;
+    private volatile OverflowPolicy overflowPolicy;
+    private final ArrayDeque<MackerelMetricBuffer> pendingFlushes = new ArrayDeque<MackerelMetricBuffer>();
+    private final ArrayDeque<MackerelMetricBuffer> freeBuffers = new ArrayDeque<MackerelMetricBuffer>();
+    private int inFlightFlushes;
+    private volatile MackerelSenderMetrics senderMetrics;
+    private volatile MackerelPushQueue pushQueue;
+    /** Whether {@link #close()} was called, so that a push buffer created afterwards is closed at once. */
+    private boolean closed;
+    private int pushCapacity = DEFAULT_PUSH_CAPACITY;
+    private long pushMaxBlockMillis;
+    private final MackerelPushQueue.Consumer pushConsumer = new MackerelPushQueue.Consumer() {
+        @Override
+        public void accept(String name, double value, long timestamp) {
+            add(name, value, timestamp);
+        }
+    };
 
     public MackerelSender(String serviceName, String apiKey) {
         this(serviceName, apiKey, DEFAULT_BASE_URL);
     }
 
     public MackerelSender(String serviceName, String apiKey, String baseUrl) {
-        Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl(baseUrl)
-                .addConverterFactory(JacksonConverterFactory.create())
-                .build();
+        this(serviceName, apiKey, baseUrl, MackerelTransport.defaultTransport());
+    }
+
+    /**
+     * Creates a sender which posts service metrics through the given transport,
+     * which may be shared with other senders.
+     *
+     * @param serviceName the name of the service
+     * @param apiKey      the key of the api
+     * @param baseUrl     the base url of the Mackerel API
+     * @param transport   the HTTP transport
+     */
+    public MackerelSender(String serviceName, String apiKey, String baseUrl, MackerelTransport transport) {
+        this(serviceName, null, apiKey, baseUrl, transport);
+    }
+
+    /**
+     * Creates a sender which posts host metrics of the given host.
+     *
+     * @param hostId the id of the host
+     * @param apiKey the key of the api
+     * @return a sender for the host metrics
+     */
+    public static MackerelSender forHost(String hostId, String apiKey) {
+        return forHost(hostId, apiKey, DEFAULT_BASE_URL);
+    }
 
+    /**
+     * Creates a sender which posts host metrics of the given host.
+     *
+     * @param hostId  the id of the host
+     * @param apiKey  the key of the api
+     * @param baseUrl the base url of the Mackerel API
+     * @return a sender for the host metrics
+     */
+    public static MackerelSender forHost(String hostId, String apiKey, String baseUrl) {
+        return forHost(hostId, apiKey, baseUrl, MackerelTransport.defaultTransport());
+    }
+
+    /**
+     * Creates a sender which posts host metrics of the given host through the given transport,
+     * which may be shared with other senders.
+     *
+     * @param hostId    the id of the host
+     * @param apiKey    the key of the api
+     * @param baseUrl   the base url of the Mackerel API
+     * @param transport the HTTP transport
+     * @return a sender for the host metrics
+     */
+    public static MackerelSender forHost(String hostId, String apiKey, String baseUrl, MackerelTransport transport) {
+        if (hostId == null)
+            throw new IllegalArgumentException("hostId is required");
+        return new MackerelSender(null, hostId, apiKey, baseUrl, transport);
+    }
+
+    /**
+     * @param transport the HTTP transport, or null for a subclass which doesn't post to the API
+     */
+    MackerelSender(String serviceName, String hostId, String apiKey, String baseUrl, MackerelTransport transport) {
         InputStream resourceAsStream = this.getClass()
                 .getResourceAsStream("/version.properties");
         Properties props = new Properties();
@@ -40,7 +175,7 @@ public class MackerelSender {
             props.load(resourceAsStream);
             userAgent = "metrics-mackerel/"
                     + props.getProperty("version")
-                    + " (for " + serviceName + ")";
+                    + " (for " + (hostId != null ? hostId : serviceName) + ")";
         } catch (IOException e) {
             throw new IllegalStateException(e);
         } finally {
@@ -54,11 +189,15 @@ public class MackerelSender {
         circuitBreaker = new CircuitBreaker()
                 .withFailureThreshold(3)
                 .withDelay(15, TimeUnit.MINUTES)
-                .withSuccessThreshold(3);
+                .withSuccessThreshold(3)
+                .onOpen(new BreakerListener(CircuitBreaker.State.OPEN))
+                .onHalfOpen(new BreakerListener(CircuitBreaker.State.HALF_OPEN))
+                .onClose(new BreakerListener(CircuitBreaker.State.CLOSED));
 
-        apiService = retrofit.create(MackerelApiService.class);
-        metrics = new ArrayList<MackerelServiceMetric>();
+        apiService = transport != null ? transport.apiService(baseUrl) : null;
+        metrics = new MackerelMetricBuffer();
         this.serviceName = serviceName;
+        this.hostId = hostId != null ? new SerializedString(hostId) : null;
         this.apiKey = apiKey;
     }
 
@@ -66,6 +205,308 @@ public class MackerelSender {
         this.userAgent = userAgent;
     }
 
+    /**
+     * Publishes the internal metrics of this sender to the registry:
+     * serialization time and bytes, HTTP latency by status code, series sent and dropped,
+     * circuit breaker state and transitions, and buffer occupancy.
+     * The metrics are named after this class and the service name or the host id.
+     *
+     * @param registry the registry the internal metrics are published to
+     */
+    public synchronized void instrument(MetricRegistry registry) {
+        MackerelSenderMetrics metrics = new MackerelSenderMetrics(registry,
+                MetricRegistry.name(MackerelSender.class, hostId != null ? hostId.getValue() : serviceName));
+        metrics.gauge("breaker.state", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return circuitBreaker.getState().ordinal();
+            }
+        });
+        metrics.gauge("buffer.size", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return MackerelSender.this.metrics.size();
+            }
+        });
+        metrics.gauge("flushes.inFlight", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                synchronized (pendingFlushes) {
+                    return inFlightFlushes;
+                }
+            }
+        });
+        metrics.gauge("batch.size", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getBatchSize();
+            }
+        });
+        metrics.gauge("batch.concurrency", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getConcurrentRequests();
+            }
+        });
+        metrics.gauge("retry.bytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                MackerelRetryQueue retryQueue = MackerelSender.this.retryQueue;
+                return retryQueue != null ? retryQueue.getBytes() : 0L;
+            }
+        });
+        metrics.gauge("spool.bytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                MackerelSpool spool = MackerelSender.this.spool;
+                return spool != null ? spool.getDiskUsage() : 0L;
+            }
+        });
+        this.senderMetrics = metrics;
+    }
+
+    /**
+     * Compresses request bodies with gzip and sends them with
+     * <code>Content-Encoding: gzip</code>.
+     *
+     * @param gzipEnabled whether request bodies are compressed
+     */
+    public void setGzipEnabled(boolean gzipEnabled) {
+        this.gzipEnabled = gzipEnabled;
+    }
+
+    /**
+     * Skips values which haven't changed since they were last sent.
+     *
+     * A value is sent only when it differs from the last sent value of the series by more than
+     * <code>epsilon</code>, or when <code>heartbeat</code> has passed since the last sent value,
+     * so graphs have no gaps longer than the heartbeat. Timestamps are compared as epoch seconds.
+     *
+     * @param epsilon   the minimum change of a value to be sent, or 0 to send any change
+     * @param heartbeat the interval after which an unchanged value is sent again
+     * @param unit      the unit of the heartbeat
+     */
+    public void setChangeSuppression(double epsilon, long heartbeat, TimeUnit unit) {
+        this.changeSuppressor = new MackerelChangeSuppressor(epsilon, Math.max(1, unit.toSeconds(heartbeat)));
+    }
+
+    /**
+     * Sends metrics on a dedicated I/O thread, so that {@link #flush()} never waits on the API.
+     *
+     * At most <code>maxInFlightFlushes</code> flushes are being sent or waiting to be sent.
+     * When the window is full, the overflow policy decides what happens to the new flush.
+     *
+     * @param maxInFlightFlushes the size of the in-flight window
+     * @param overflowPolicy     the policy applied when the window is full
+     */
+    public synchronized void setAsync(int maxInFlightFlushes, OverflowPolicy overflowPolicy) {
+        if (maxInFlightFlushes < 1)
+            throw new IllegalArgumentException("maxInFlightFlushes must be positive: " + maxInFlightFlushes);
+        this.maxInFlightFlushes = maxInFlightFlushes;
+        this.overflowPolicy = overflowPolicy;
+        if (ioExecutor == null) {
+            ioExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("mackerel-sender-io"));
+        }
+    }
+
+    /**
+     * Configures the circuit breaker which stops sending after consecutive failures.
+     * The default opens after 3 failures, waits 15 minutes and closes after 3 successes.
+     *
+     * @param failureThreshold the number of consecutive failures which opens the breaker
+     * @param delay            how long the breaker stays open before it lets a request through
+     * @param unit             the unit of the delay
+     * @param successThreshold the number of consecutive successes which closes the half-open breaker
+     */
+    public void setCircuitBreaker(int failureThreshold, long delay, TimeUnit unit, int successThreshold) {
+        circuitBreaker.withFailureThreshold(failureThreshold)
+                .withDelay(delay, unit)
+                .withSuccessThreshold(successThreshold);
+    }
+
+    /**
+     * Retries batches which fail to be sent, after a jittered exponential backoff.
+     *
+     * A <code>Retry-After</code> header of a 429 or 503 response holds back every retry and every new batch
+     * until the requested time; the new batches are queued for retry in the meantime.
+     * Batches which failed first more than <code>maxAge</code> ago are dropped, and the oldest batches are
+     * spooled, or dropped without a spool, when the queued batches would exceed <code>maxRetryBytes</code>.
+     * Batches rejected with a client error other than 408 or 429 are not retried.
+     * Calling this method again keeps the queued batches which fit in the new budget, and spools the others.
+     *
+     * @param initialBackoff the backoff before the first retry
+     * @param maxBackoff     the maximum backoff between retries
+     * @param maxAge         how long a batch is retried
+     * @param unit           the unit of the backoffs and the age
+     * @param maxRetryBytes  the maximum bytes of the batches waiting to be retried
+     */
+    public synchronized void setRetry(long initialBackoff, long maxBackoff, long maxAge, TimeUnit unit, long maxRetryBytes) {
+        if (initialBackoff < 1 || maxBackoff < initialBackoff)
+            throw new IllegalArgumentException("The backoff must be positive and at most maxBackoff: " + initialBackoff);
+        if (maxRetryBytes < 1)
+            throw new IllegalArgumentException("maxRetryBytes must be positive: " + maxRetryBytes);
+        MackerelRetryQueue previous = this.retryQueue;
+        MackerelRetryQueue retryQueue = new MackerelRetryQueue(unit.toMillis(initialBackoff), unit.toMillis(maxBackoff),
+                unit.toMillis(maxAge), maxRetryBytes, new Random());
+        this.retryQueue = retryQueue;
+        if (previous != null) {
+            for (MackerelRetryQueue.Entry entry : retryQueue.takeOver(previous)) {
+                spool(entry.payload, entry.count, "The retry queue is full.");
+            }
+        }
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("mackerel-sender-retry"));
+            retryScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    drainRetries();
+                }
+            }, RETRY_TICK_MILLIS, RETRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Spools batches which fail to be sent, and replays them while the circuit breaker is closed.
+     *
+     * @param spool the spool, or null to drop failed batches
+     */
+    public void setSpool(MackerelSpool spool) {
+        setSpool(spool, DEFAULT_MAX_REPLAYS_PER_SECOND);
+    }
+
+    /**
+     * Spools batches which fail to be sent, and replays them while the circuit breaker is closed.
+     *
+     * @param spool               the spool, or null to drop failed batches
+     * @param maxReplaysPerSecond the maximum number of spooled batches replayed per second
+     */
+    public synchronized void setSpool(MackerelSpool spool, int maxReplaysPerSecond) {
+        if (maxReplaysPerSecond < 1)
+            throw new IllegalArgumentException("maxReplaysPerSecond must be positive: " + maxReplaysPerSecond);
+        this.spool = spool;
+        this.maxReplaysPerSecond = maxReplaysPerSecond;
+        if (spool != null && spoolDrainer == null) {
+            spoolDrainer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("mackerel-sender-spool"));
+            spoolDrainer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    drainSpool();
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Sets the size of the buffer which holds the data points sent from any thread until the next flush.
+     * The default holds 8192 data points and drops new ones when it is full.
+     *
+     * @param capacity       the number of data points, rounded up to a power of two
+     * @param overflowPolicy the policy applied when the buffer is full
+     */
+    public void setPushBuffer(int capacity, PushOverflowPolicy overflowPolicy) {
+        setPushBuffer(capacity, overflowPolicy == PushOverflowPolicy.BLOCK ? DEFAULT_PUSH_MAX_BLOCK_MILLIS : 0,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the size of the buffer which holds the data points sent from any thread until the next flush,
+     * and how long a send waits for a flush to make room when the buffer is full before it drops the data point.
+     * Sends don't wait once the sender is closed.
+     *
+     * @param capacity the number of data points, rounded up to a power of two and at least 2
+     * @param maxBlock the longest wait of a send, or 0 to drop the data point at once
+     * @param unit     the unit of the wait
+     */
+    public synchronized void setPushBuffer(int capacity, long maxBlock, TimeUnit unit) {
+        if (capacity < 1 || capacity > MackerelPushQueue.MAX_CAPACITY)
+            throw new IllegalArgumentException("capacity must be between 1 and " + MackerelPushQueue.MAX_CAPACITY
+                    + ": " + capacity);
+        if (maxBlock < 0)
+            throw new IllegalArgumentException("maxBlock must not be negative: " + maxBlock);
+        if (pushQueue != null)
+            throw new IllegalStateException("The push buffer is already in use");
+        this.pushCapacity = capacity;
+        this.pushMaxBlockMillis = unit.toMillis(maxBlock);
+    }
+
+    /**
+     * Sets the maximum number of series posted in one request.
+     *
+     * @param maxBatchSize the maximum number of series per request
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Adapts the number of series posted in one request and the number of requests in flight to the API,
+     * instead of the fixed maximums. Both start at their minimum and grow while responses come back
+     * within the target latency; slow responses, 413, 429, 5xx and timeouts shrink them.
+     * The maximum bytes per request still applies.
+     *
+     * @param minBatchSize   the minimum number of series per request
+     * @param maxBatchSize   the maximum number of series per request
+     * @param minConcurrency the minimum number of parallel requests
+     * @param maxConcurrency the maximum number of parallel requests
+     * @param targetLatency  the response time above which the batches shrink
+     * @param unit           the unit of the target latency
+     * @see #getBatchSize()
+     * @see #getConcurrentRequests()
+     */
+    public void setAdaptiveBatching(int minBatchSize, int maxBatchSize, int minConcurrency, int maxConcurrency,
+                                    long targetLatency, TimeUnit unit) {
+        this.adaptiveController = new MackerelAdaptiveController(minBatchSize, maxBatchSize,
+                minConcurrency, maxConcurrency, targetLatency, unit);
+    }
+
+    /**
+     * Returns the maximum number of series posted in one request, as adapted if adaptive batching is enabled.
+     *
+     * @return the number of series per request
+     */
+    public int getBatchSize() {
+        MackerelAdaptiveController controller = adaptiveController;
+        return controller != null ? controller.getBatchSize() : maxBatchSize;
+    }
+
+    /**
+     * Returns the maximum number of requests in flight, as adapted if adaptive batching is enabled.
+     *
+     * @return the number of parallel requests
+     */
+    public int getConcurrentRequests() {
+        MackerelAdaptiveController controller = adaptiveController;
+        return controller != null ? controller.getConcurrency() : maxConcurrentRequests;
+    }
+
+    /**
+     * Sets the maximum estimated size of the JSON body posted in one request.
+     *
+     * @param maxBatchBytes the maximum bytes per request
+     */
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        if (maxBatchBytes < 1)
+            throw new IllegalArgumentException("maxBatchBytes must be positive: " + maxBatchBytes);
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight while flushing.
+     *
+     * @param maxConcurrentRequests the maximum number of parallel requests
+     */
+    public synchronized void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 1)
+            throw new IllegalArgumentException("maxConcurrentRequests must be positive: " + maxConcurrentRequests);
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+    }
+
     /**
      * Sends the given measurement to the server.
      *
@@ -74,31 +515,597 @@ public class MackerelSender {
      * @param timestamp the timestamp of the metric
      */
     public void send(String name, Double value, long timestamp) {
-        metrics.add(new MackerelServiceMetric(name, value, timestamp));
+        send(name, value != null ? value : Double.NaN, timestamp);
+    }
+
+    /**
+     * Sends the given measurement to the server with the next flush.
+     *
+     * This method is safe to call from any thread without a lock. The measurement is held in the push buffer
+     * until the next flush, and is dropped, or waits, when the buffer is full.
+     *
+     * @param name      the name of the metric
+     * @param value     the value of the metric, or NaN if there is no value
+     * @param timestamp the timestamp of the metric
+     * @see #setPushBuffer(int, PushOverflowPolicy)
+     */
+    public void send(String name, double value, long timestamp) {
+        MackerelPushQueue pushQueue = this.pushQueue;
+        if (pushQueue == null) {
+            pushQueue = pushQueue();
+        }
+        pushQueue.offer(name, value, timestamp);
+    }
+
+    private synchronized MackerelPushQueue pushQueue() {
+        if (pushQueue == null) {
+            MackerelPushQueue created = new MackerelPushQueue(pushCapacity, pushMaxBlockMillis, TimeUnit.MILLISECONDS);
+            if (closed) {
+                created.close();
+            }
+            pushQueue = created;
+        }
+        return pushQueue;
+    }
+
+    /**
+     * Adds the given measurement to the buffer. Only the thread which flushes this sender may call this method,
+     * as the reporter does.
+     *
+     * @param name      the name of the metric
+     * @param value     the value of the metric, or NaN if there is no value
+     * @param timestamp the timestamp of the metric
+     */
+    void add(String name, double value, long timestamp) {
+        if (changeSuppressor != null && !changeSuppressor.shouldSend(name, value, timestamp)) {
+            return;
+        }
+        metrics.add(name, value, timestamp);
+    }
+
+    /**
+     * Tells whether this sender may take the snapshots of histograms and timers
+     * through {@link #addSnapshot(String[], Snapshot, double, long)}.
+     *
+     * @return true if the sender takes snapshots
+     */
+    boolean acceptsSnapshots() {
+        return false;
     }
 
     /**
-     * Flushes buffer, if applicable
+     * Adds the percentiles and the standard deviation of a histogram or a timer as its snapshot,
+     * for a sender which merges the snapshots before the values are taken. The same thread as {@link #add} calls this method.
      *
+     * @param seriesNames the series names of the metric, indexed by {@link com.codahale.metrics.MetricAttribute#ordinal()}
+     * @param snapshot    the snapshot of the metric
+     * @param scale       the factor which converts the values of the snapshot to those of the series
+     * @param timestamp   the timestamp of the metric
+     * @return true if the snapshot is taken, or false to have its values added one by one
+     */
+    boolean addSnapshot(String[] seriesNames, Snapshot snapshot, double scale, long timestamp) {
+        return false;
+    }
+
+    void drainPushed() {
+        MackerelPushQueue pushQueue = this.pushQueue;
+        if (pushQueue == null) {
+            return;
+        }
+        pushQueue.drain(pushConsumer);
+        long overflows = pushQueue.takeOverflows();
+        if (overflows > 0) {
+            drop("The push buffer is full.", (int) Math.min(overflows, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Flushes buffer, if applicable.
+     *
+     * The buffer is split into batches bounded by {@link #setMaxBatchSize(int)} and
+     * {@link #setMaxBatchBytes(long)}, which are posted over at most
+     * {@link #setMaxConcurrentRequests(int)} parallel requests.
+     * Each batch succeeds or fails on its own; if any of them failed,
+     * the first failure is rethrown after all batches are done.
+     *
+     * In the asynchronous mode, the buffer is handed to the I/O thread and this method returns immediately.
      */
     void flush() {
+        drainPushed();
+        if (metrics.size() == 0) {
+            return;
+        }
+        if (ioExecutor != null) {
+            flushAsync(ioExecutor);
+            return;
+        }
         try {
-            Failsafe.with(circuitBreaker)
-                    .run(new CheckedRunnable() {
-                        @Override
-                        public void run() throws Exception {
-                            Response response = apiService.postServiceMetrics(
-                                    serviceName,
-                                    apiKey,
-                                    userAgent,
-                                    metrics).execute();
-                            if (response.code() != 200) {
-                                throw new IOException("Fail to send a Mackerel server.");
-                            }
-                        }
-                    });
+            sendBatches(metrics);
         } finally {
             metrics.clear();
         }
     }
+
+    private void flushAsync(ExecutorService ioExecutor) {
+        MackerelMetricBuffer payload = metrics;
+        MackerelMetricBuffer spilled = null;
+        synchronized (pendingFlushes) {
+            MackerelMetricBuffer free = freeBuffers.pollFirst();
+            metrics = free != null ? free : new MackerelMetricBuffer();
+
+            if (inFlightFlushes >= maxInFlightFlushes) {
+                switch (overflowPolicy) {
+                    case DROP_OLDEST:
+                        MackerelMetricBuffer dropped = pendingFlushes.pollFirst();
+                        if (dropped == null) {
+                            drop("Too many flushes in flight.", payload.size());
+                            recycle(payload);
+                            return;
+                        }
+                        drop("Too many flushes in flight.", dropped.size());
+                        recycle(dropped);
+                        inFlightFlushes--;
+                        break;
+                    case COALESCE:
+                        MackerelMetricBuffer newest = pendingFlushes.peekLast();
+                        if (newest == null) {
+                            drop("Too many flushes in flight.", payload.size());
+                        } else {
+                            newest.addAll(payload);
+                        }
+                        recycle(payload);
+                        return;
+                    case SPOOL:
+                        spilled = payload;
+                        break;
+                }
+            }
+            if (spilled == null) {
+                pendingFlushes.addLast(payload);
+                inFlightFlushes++;
+            }
+        }
+        if (spilled != null) {
+            // writes to the disk without the lock, so a slow disk doesn't hold up the other flushes
+            for (MackerelMetricBuffer.Slice batch : split(spilled)) {
+                spool(batch);
+            }
+            synchronized (pendingFlushes) {
+                recycle(spilled);
+            }
+            return;
+        }
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MackerelMetricBuffer payload;
+                synchronized (pendingFlushes) {
+                    payload = pendingFlushes.pollFirst();
+                }
+                if (payload == null) {
+                    return;
+                }
+                try {
+                    sendBatches(payload);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Unable to report to Mackerel", e);
+                } finally {
+                    synchronized (pendingFlushes) {
+                        recycle(payload);
+                        inFlightFlushes--;
+                    }
+                }
+            }
+        });
+    }
+
+    private void recycle(MackerelMetricBuffer buffer) {
+        buffer.clear();
+        freeBuffers.addLast(buffer);
+    }
+
+    private void sendBatches(MackerelMetricBuffer metrics) {
+        if (metrics.size() == 0) {
+            return;
+        }
+        List<MackerelMetricBuffer.Slice> batches = split(metrics);
+        MackerelRetryQueue retryQueue = this.retryQueue;
+        long heldBack = retryQueue != null ? retryQueue.heldBackFor(now()) : 0;
+        if (heldBack > 0) {
+            // the server asked for a pause, which new batches honor as well as the retries
+            for (MackerelMetricBuffer.Slice batch : batches) {
+                defer(retryQueue, batch, heldBack);
+            }
+            return;
+        }
+        if (batches.size() == 1) {
+            post(batches.get(0));
+            return;
+        }
+
+        ExecutorService executor = batchExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>(batches.size());
+        for (final MackerelMetricBuffer.Slice batch : batches) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    post(batch);
+                }
+            }));
+        }
+        RuntimeException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while flushing", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ?
+                            (RuntimeException) e.getCause() :
+                            new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    List<MackerelMetricBuffer.Slice> split(MackerelMetricBuffer metrics) {
+        List<MackerelMetricBuffer.Slice> batches = new ArrayList<MackerelMetricBuffer.Slice>();
+        final int batchSize = getBatchSize();
+        int from = 0;
+        long bytes = 0;
+        for (int i = 0; i < metrics.size(); i++) {
+            long size = estimateSize(metrics.name(i));
+            if (i > from && (i - from >= batchSize || bytes + size > maxBatchBytes)) {
+                batches.add(new MackerelMetricBuffer.Slice(metrics, from, i));
+                from = i;
+                bytes = 0;
+            }
+            bytes += size;
+        }
+        if (from < metrics.size() || batches.isEmpty()) {
+            batches.add(new MackerelMetricBuffer.Slice(metrics, from, metrics.size()));
+        }
+        return batches;
+    }
+
+    private static long estimateSize(String name) {
+        return name.length() + METRIC_JSON_OVERHEAD;
+    }
+
+    private void post(final MackerelMetricBuffer.Slice batch) {
+        try {
+            post(new MackerelMetricsRequestBody(batch, hostId, gzipEnabled, senderMetrics), batch.size());
+        } catch (RuntimeException e) {
+            failed(batch, e);
+            throw e;
+        }
+        sent(batch.size());
+    }
+
+    private void failed(MackerelMetricBuffer.Slice batch, RuntimeException e) {
+        MackerelRetryQueue retryQueue = this.retryQueue;
+        if (retryQueue == null) {
+            if (spool != null) {
+                spool(batch);
+            } else {
+                drop(null, batch.size());
+            }
+            return;
+        }
+        MackerelHttpException cause = httpException(e);
+        if (cause != null && !cause.isRetryable()) {
+            drop("Rejected by the server.", batch.size());
+            return;
+        }
+        defer(retryQueue, batch, cause != null ? cause.getRetryAfterMillis() : 0);
+    }
+
+    /**
+     * Queues a batch to be retried after a backoff, or not before the given delay.
+     */
+    private void defer(MackerelRetryQueue retryQueue, MackerelMetricBuffer.Slice batch, long retryAfter) {
+        byte[] payload;
+        try {
+            payload = encode(batch);
+        } catch (IOException ioe) {
+            LOGGER.warn("Unable to encode metrics", ioe);
+            drop(null, batch.size());
+            return;
+        }
+        List<MackerelRetryQueue.Entry> evicted = retryQueue.offer(payload, batch.size(), now(), retryAfter);
+        for (MackerelRetryQueue.Entry entry : evicted) {
+            spool(entry.payload, entry.count, "The retry queue is full.");
+        }
+        takeOverIfReplaced(retryQueue);
+    }
+
+    /**
+     * Moves the entries queued into a retry queue which {@link #setRetry} replaced in the meantime,
+     * such as a batch which failed or was retried while the queue was replaced, to the current queue.
+     * Otherwise the replaced queue, which nothing drains any more, would keep them.
+     */
+    private void takeOverIfReplaced(MackerelRetryQueue retryQueue) {
+        MackerelRetryQueue current = this.retryQueue;
+        if (current != retryQueue) {
+            for (MackerelRetryQueue.Entry entry : current.takeOver(retryQueue)) {
+                spool(entry.payload, entry.count, "The retry queue is full.");
+            }
+        }
+    }
+
+    /**
+     * Retries the batches whose backoff has elapsed, until one of them fails again.
+     */
+    void drainRetries() {
+        MackerelRetryQueue retryQueue = this.retryQueue;
+        if (retryQueue == null) {
+            return;
+        }
+        int expired = retryQueue.expire(now());
+        if (expired > 0) {
+            drop("Retries have expired.", expired);
+        }
+        while (circuitBreaker.allowsExecution()) {
+            MackerelRetryQueue.Entry entry = retryQueue.poll(now());
+            if (entry == null) {
+                return;
+            }
+            try {
+                post(RequestBody.create(MackerelMetricsRequestBody.JSON, entry.payload), entry.count);
+            } catch (RuntimeException e) {
+                MackerelHttpException cause = httpException(e);
+                if (cause != null && !cause.isRetryable()) {
+                    retryQueue.done(entry);
+                    drop("Rejected by the server.", entry.count);
+                } else if (!retryQueue.reschedule(entry, now(), cause != null ? cause.getRetryAfterMillis() : 0)) {
+                    drop("Retries have expired.", entry.count);
+                } else {
+                    takeOverIfReplaced(retryQueue);
+                }
+                LOGGER.debug("Unable to retry metrics", e);
+                return;
+            }
+            retryQueue.done(entry);
+            sent(entry.count);
+        }
+    }
+
+    private static MackerelHttpException httpException(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MackerelHttpException) {
+                return (MackerelHttpException) cause;
+            }
+        }
+        return null;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void spool(MackerelMetricBuffer.Slice batch) {
+        byte[] payload;
+        try {
+            payload = encode(batch);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to spool metrics", e);
+            drop(null, batch.size());
+            return;
+        }
+        spool(payload, batch.size(), "No spool is configured.");
+    }
+
+    private void spool(byte[] payload, int count, String reasonWithoutSpool) {
+        MackerelSpool spool = this.spool;
+        if (spool == null) {
+            drop(reasonWithoutSpool, count);
+            return;
+        }
+        try {
+            if (!spool.append(payload, count)) {
+                drop("The spool is full.", count);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to spool metrics", e);
+            drop(null, count);
+        }
+    }
+
+    private void sent(int count) {
+        MackerelSenderMetrics metrics = senderMetrics;
+        if (metrics != null) {
+            metrics.sent(count);
+        }
+    }
+
+    private void drop(String reason, int count) {
+        if (reason != null) {
+            LOGGER.warn("{} {} metrics are dropped.", reason, count);
+        }
+        MackerelSenderMetrics metrics = senderMetrics;
+        if (metrics != null) {
+            metrics.dropped(count);
+        }
+    }
+
+    /**
+     * @param count the number of series in the body, or 0 if unknown
+     */
+    private void post(final RequestBody body, final int count) {
+        Failsafe.with(circuitBreaker)
+                .run(new CheckedRunnable() {
+                    @Override
+                    public void run() throws Exception {
+                        String contentEncoding = body instanceof MackerelMetricsRequestBody ?
+                                ((MackerelMetricsRequestBody) body).contentEncoding() : null;
+                        MackerelSenderMetrics metrics = senderMetrics;
+                        MackerelAdaptiveController controller = adaptiveController;
+                        long start = System.nanoTime();
+                        Response response;
+                        try {
+                            response = hostId != null ?
+                                    apiService.postHostMetrics(apiKey, userAgent, contentEncoding, body).execute() :
+                                    apiService.postServiceMetrics(serviceName, apiKey, userAgent, contentEncoding, body).execute();
+                        } catch (IOException e) {
+                            if (metrics != null) {
+                                metrics.failed(System.nanoTime() - start);
+                            }
+                            if (controller != null) {
+                                controller.failed(start, count);
+                            }
+                            throw e;
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        if (metrics != null) {
+                            metrics.responded(response.code(), elapsed);
+                        }
+                        if (controller != null) {
+                            controller.responded(response.code(), start, elapsed, count);
+                        }
+                        if (response.code() != 200) {
+                            long retryAfter = response.code() == 429 || response.code() == 503 ?
+                                    MackerelHttpException.parseRetryAfter(response.headers().get("Retry-After")) : 0;
+                            throw new MackerelHttpException(response.code(), retryAfter);
+                        }
+                    }
+                });
+    }
+
+    private byte[] encode(MackerelMetricBuffer.Slice batch) throws IOException {
+        Buffer buffer = new Buffer();
+        new MackerelMetricsRequestBody(batch, hostId, false, null).writeTo(buffer);
+        return buffer.readByteArray();
+    }
+
+    /**
+     * Replays spooled batches oldest first, while the circuit breaker stays closed.
+     * A batch rejected with a client error which isn't retryable is dropped, so it doesn't hold up the others.
+     */
+    void drainSpool() {
+        MackerelSpool spool = this.spool;
+        if (spool == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < maxReplaysPerSecond && circuitBreaker.isClosed(); i++) {
+                MackerelSpool.Record record = spool.peekRecord();
+                if (record == null) {
+                    return;
+                }
+                try {
+                    post(RequestBody.create(MackerelMetricsRequestBody.JSON, record.getPayload()), record.getCount());
+                } catch (RuntimeException e) {
+                    MackerelHttpException cause = httpException(e);
+                    if (cause == null || cause.isRetryable()) {
+                        throw e;
+                    }
+                    spool.remove(record);
+                    drop("Rejected by the server.", record.getCount());
+                    continue;
+                }
+                spool.remove(record);
+                sent(record.getCount());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read the spool", e);
+        } catch (RuntimeException e) {
+            LOGGER.debug("Unable to replay spooled metrics", e);
+        }
+    }
+
+    /**
+     * Stops the background threads of this sender, and makes the sends fail at once.
+     */
+    public synchronized void close() {
+        closed = true;
+        MackerelPushQueue pushQueue = this.pushQueue;
+        if (pushQueue != null) {
+            pushQueue.close();
+        }
+        if (ioExecutor != null) {
+            ioExecutor.shutdown();
+            ioExecutor = null;
+        }
+        if (spoolDrainer != null) {
+            spoolDrainer.shutdown();
+            spoolDrainer = null;
+        }
+        if (retryScheduler != null) {
+            retryScheduler.shutdown();
+            retryScheduler = null;
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+    }
+
+    private synchronized ExecutorService batchExecutor() {
+        if (batchExecutor != null && adaptiveController != null) {
+            resize((ThreadPoolExecutor) batchExecutor, adaptiveController.getConcurrency());
+        }
+        if (batchExecutor == null) {
+            final int concurrency = getConcurrentRequests();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    concurrency, concurrency,
+                    60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new DaemonThreadFactory("mackerel-sender-batch"));
+            executor.allowCoreThreadTimeOut(true);
+            batchExecutor = executor;
+        }
+        return batchExecutor;
+    }
+
+    /**
+     * Resizes the pool to the adapted concurrency. Requests in flight complete,
+     * and the threads above the new size end when they become idle.
+     */
+    private static void resize(ThreadPoolExecutor executor, int concurrency) {
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else if (concurrency < executor.getCorePoolSize()) {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    private class BreakerListener implements CheckedRunnable {
+        private final CircuitBreaker.State state;
+
+        private BreakerListener(CircuitBreaker.State state) {
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info("The circuit breaker of {} is {}", userAgent, state);
+            MackerelSenderMetrics metrics = senderMetrics;
+            if (metrics != null) {
+                metrics.transitioned(state);
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix;
+
+        private DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -0,0 +1,88 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.*;
+import com.codahale.metrics.Timer;
+import net.jodah.failsafe.CircuitBreaker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The internal metrics of a {@link MackerelSender}.
+ *
+ * @author kawasima
+ */
+final class MackerelSenderMetrics {
+    private final MetricRegistry registry;
+    private final String prefix;
+    private final Timer serialization;
+    private final Histogram payloadBytes;
+    private final Timer httpFailure;
+    private final ConcurrentMap<Integer, Timer> httpByStatus = new ConcurrentHashMap<Integer, Timer>();
+    private final Meter sent;
+    private final Meter dropped;
+    private final ConcurrentMap<CircuitBreaker.State, Counter> transitions = new ConcurrentHashMap<CircuitBreaker.State, Counter>();
+
+    MackerelSenderMetrics(MetricRegistry registry, String prefix) {
+        this.registry = registry;
+        this.prefix = prefix;
+        serialization = registry.timer(MetricRegistry.name(prefix, "serialization"));
+        payloadBytes = registry.histogram(MetricRegistry.name(prefix, "payload", "bytes"));
+        httpFailure = registry.timer(MetricRegistry.name(prefix, "http", "failure"));
+        sent = registry.meter(MetricRegistry.name(prefix, "series", "sent"));
+        dropped = registry.meter(MetricRegistry.name(prefix, "series", "dropped"));
+    }
+
+    /**
+     * Registers a gauge, unless another sender with the same name has registered it.
+     */
+    <T> void gauge(String name, Gauge<T> gauge) {
+        try {
+            registry.register(MetricRegistry.name(prefix, name), gauge);
+        } catch (IllegalArgumentException ignore) {
+            // already registered
+        }
+    }
+
+    void serialized(long nanos, long bytes) {
+        serialization.update(nanos, TimeUnit.NANOSECONDS);
+        payloadBytes.update(bytes);
+    }
+
+    void responded(int status, long nanos) {
+        Timer timer = httpByStatus.get(status);
+        if (timer == null) {
+            Timer created = registry.timer(MetricRegistry.name(prefix, "http", Integer.toString(status)));
+            timer = httpByStatus.putIfAbsent(status, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+        timer.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void failed(long nanos) {
+        httpFailure.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void sent(int count) {
+        sent.mark(count);
+    }
+
+    void dropped(int count) {
+        dropped.mark(count);
+    }
+
+    void transitioned(CircuitBreaker.State state) {
+        Counter counter = transitions.get(state);
+        if (counter == null) {
+            Counter created = registry.counter(MetricRegistry.name(prefix, "breaker", state.name().toLowerCase()));
+            counter = transitions.putIfAbsent(state, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.inc();
+    }
+}
@@ -0,0 +1,347 @@
+package net.unit8.metrics.mackerel;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A durable, append-only spool of encoded payloads which failed to be sent.
+ *
+ * Payloads are appended to memory-mapped segment files of a fixed size in the given directory.
+ * Each segment starts with a header holding its write position and read position,
+ * followed by records prefixed with their length and their number of series,
+ * so the spool survives a restart of the JVM.
+ * When the disk usage would exceed the cap, the {@link EvictionPolicy} decides
+ * whether the oldest segment or the new payload is dropped.
+ *
+ * @author kawasima
+ */
+public class MackerelSpool implements Closeable {
+    public enum EvictionPolicy {
+        /** Deletes the oldest segment to make room for new payloads. */
+        DROP_OLDEST,
+        /** Rejects new payloads until the spool is drained. */
+        DROP_NEWEST
+    }
+
+    private static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long DEFAULT_MAX_DISK_BYTES = 64 * 1024 * 1024;
+    private static final int HEADER_SIZE = 16;
+    private static final int WRITE_POSITION_OFFSET = 0;
+    private static final int READ_POSITION_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File directory;
+    private final long segmentSize;
+    private final long maxDiskBytes;
+    private final EvictionPolicy evictionPolicy;
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long nextSequence;
+    private long droppedPayloads;
+
+    /**
+     * A spooled payload, which remembers where it was read from.
+     */
+    public static final class Record {
+        private final long segment;
+        private final int position;
+        private final byte[] payload;
+        private final int count;
+
+        private Record(long segment, int position, byte[] payload, int count) {
+            this.segment = segment;
+            this.position = position;
+            this.payload = payload;
+            this.count = count;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * Returns the number of series in the payload.
+         *
+         * @return the number of series, or 0 if unknown
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    public MackerelSpool(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_DISK_BYTES, EvictionPolicy.DROP_OLDEST);
+    }
+
+    public MackerelSpool(File directory, long segmentSize, long maxDiskBytes, EvictionPolicy evictionPolicy) throws IOException {
+        if (segmentSize <= HEADER_SIZE || segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        if (maxDiskBytes < segmentSize)
+            throw new IllegalArgumentException("maxDiskBytes must be at least the segment size: " + maxDiskBytes);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create the spool directory: " + directory);
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxDiskBytes = maxDiskBytes;
+        this.evictionPolicy = evictionPolicy;
+
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.add(new Segment(new File(directory, name), sequence, false));
+                nextSequence = sequence + 1;
+            }
+        }
+    }
+
+    /**
+     * Appends the payload to the tail of the spool.
+     *
+     * @param payload the encoded payload
+     * @return true if the payload was spooled, false if it was rejected
+     * @throws IOException if the segment can't be written
+     */
+    public boolean append(byte[] payload) throws IOException {
+        return append(payload, 0);
+    }
+
+    /**
+     * Appends the payload to the tail of the spool.
+     *
+     * @param payload the encoded payload
+     * @param count   the number of series in the payload, or 0 if unknown
+     * @return true if the payload was spooled, false if it was rejected
+     * @throws IOException if the segment can't be written
+     */
+    public synchronized boolean append(byte[] payload, int count) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (recordSize > segmentSize - HEADER_SIZE) {
+            droppedPayloads++;
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.remaining() < recordSize) {
+            while ((segments.size() + 1) * segmentSize > maxDiskBytes) {
+                if (evictionPolicy == EvictionPolicy.DROP_NEWEST) {
+                    droppedPayloads++;
+                    return false;
+                }
+                Segment oldest = segments.removeFirst();
+                droppedPayloads += oldest.pendingRecords();
+                oldest.delete();
+            }
+            tail = new Segment(new File(directory, String.format("%020d%s", nextSequence, SEGMENT_SUFFIX)),
+                    nextSequence, true);
+            nextSequence++;
+            segments.addLast(tail);
+        }
+        tail.append(payload, count);
+        return true;
+    }
+
+    /**
+     * Returns the oldest payload without removing it.
+     *
+     * @return the oldest payload, or null if the spool is empty
+     * @throws IOException if the segment can't be read
+     */
+    public synchronized byte[] peek() throws IOException {
+        Record record = peekRecord();
+        return record != null ? record.payload : null;
+    }
+
+    /**
+     * Returns the oldest record without removing it.
+     *
+     * @return the oldest record, or null if the spool is empty
+     * @throws IOException if the segment can't be read
+     */
+    public synchronized Record peekRecord() throws IOException {
+        Segment head = head();
+        return head != null ? head.peek() : null;
+    }
+
+    /**
+     * Removes the oldest payload, typically after it has been replayed successfully.
+     *
+     * @throws IOException if the segment can't be updated
+     */
+    public synchronized void remove() throws IOException {
+        Segment head = head();
+        if (head != null) {
+            remove(head);
+        }
+    }
+
+    /**
+     * Removes the record if it is still the oldest one. A record which was evicted
+     * while it was being replayed is gone already, and the new oldest record is kept.
+     *
+     * @param record the record returned by {@link #peekRecord()}
+     * @throws IOException if the segment can't be updated
+     */
+    public synchronized void remove(Record record) throws IOException {
+        Segment head = head();
+        if (head != null && head.sequence == record.segment && head.readPosition() == record.position) {
+            remove(head);
+        }
+    }
+
+    private void remove(Segment head) {
+        head.skip();
+        if (head.isDrained() && segments.size() > 1) {
+            segments.removeFirst().delete();
+        }
+    }
+
+    public synchronized boolean isEmpty() throws IOException {
+        return head() == null;
+    }
+
+    /**
+     * Returns the number of bytes on disk used by the segments.
+     *
+     * @return the disk usage in bytes
+     */
+    public synchronized long getDiskUsage() {
+        return segments.size() * segmentSize;
+    }
+
+    /**
+     * Returns the number of payloads which were evicted or rejected.
+     *
+     * @return the count of dropped payloads
+     */
+    public synchronized long getDroppedPayloads() {
+        return droppedPayloads;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private Segment head() throws IOException {
+        while (!segments.isEmpty()) {
+            Segment head = segments.peekFirst();
+            if (!head.isDrained()) {
+                return head;
+            }
+            if (segments.size() == 1) {
+                return null;
+            }
+            segments.removeFirst().delete();
+        }
+        return null;
+    }
+
+    private class Segment {
+        private final File file;
+        private final long sequence;
+        private MappedByteBuffer buffer;
+
+        private Segment(File file, long sequence, boolean create) throws IOException {
+            this.file = file;
+            this.sequence = sequence;
+            map();
+            if (create) {
+                buffer.putLong(WRITE_POSITION_OFFSET, HEADER_SIZE);
+                buffer.putLong(READ_POSITION_OFFSET, HEADER_SIZE);
+                buffer.force();
+            }
+        }
+
+        private void map() throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            } finally {
+                raf.close();
+            }
+        }
+
+        private int writePosition() {
+            return (int) buffer.getLong(WRITE_POSITION_OFFSET);
+        }
+
+        private int readPosition() {
+            return (int) buffer.getLong(READ_POSITION_OFFSET);
+        }
+
+        long remaining() {
+            return segmentSize - writePosition();
+        }
+
+        boolean isDrained() {
+            return readPosition() >= writePosition();
+        }
+
+        void append(byte[] payload, int count) {
+            int position = writePosition();
+            ByteBuffer record = buffer.duplicate();
+            record.position(position);
+            record.putInt(payload.length).putInt(count).put(payload);
+            buffer.putLong(WRITE_POSITION_OFFSET, position + RECORD_HEADER_SIZE + payload.length);
+            buffer.force();
+        }
+
+        Record peek() {
+            int position = readPosition();
+            ByteBuffer record = buffer.duplicate();
+            record.position(position);
+            byte[] payload = new byte[record.getInt()];
+            int count = record.getInt();
+            record.get(payload);
+            return new Record(sequence, position, payload, count);
+        }
+
+        void skip() {
+            int position = readPosition();
+            buffer.putLong(READ_POSITION_OFFSET, position + RECORD_HEADER_SIZE + buffer.getInt(position));
+            buffer.force();
+        }
+
+        long pendingRecords() {
+            long records = 0;
+            int end = writePosition();
+            for (int position = readPosition(); position < end;
+                 position += RECORD_HEADER_SIZE + buffer.getInt(position)) {
+                records++;
+            }
+            return records;
+        }
+
+        void delete() {
+            close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+        void close() {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+        }
+    }
+}
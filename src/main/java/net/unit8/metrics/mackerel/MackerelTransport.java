@@ -0,0 +1,212 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import retrofit2.Retrofit;
+import retrofit2.converter.jackson.JacksonConverterFactory;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTP client shared by many {@link MackerelSender}s.
+ *
+ * Every sender created with the same transport posts through one connection pool and one dispatcher,
+ * so N services reporting from a JVM keep a single set of persistent connections to the Mackerel API.
+ * The senders created without a transport share {@link #defaultTransport()}.
+ *
+ * @author kawasima
+ */
+public class MackerelTransport implements Closeable {
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int maxIdleConnections;
+        private long keepAliveMillis;
+        private int maxRequests;
+        private int maxRequestsPerHost;
+        private boolean http2;
+        private long connectTimeoutMillis;
+        private long readTimeoutMillis;
+        private long writeTimeoutMillis;
+
+        private Builder() {
+            this.maxIdleConnections = 5;
+            this.keepAliveMillis = TimeUnit.MINUTES.toMillis(5);
+            this.maxRequests = 64;
+            this.maxRequestsPerHost = 5;
+            this.http2 = true;
+            this.connectTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+            this.readTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+            this.writeTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+        }
+
+        /**
+         * Sets the size of the connection pool.
+         *
+         * @param maxIdleConnections the maximum number of idle connections kept in the pool
+         * @param keepAlive          how long an idle connection is kept
+         * @param unit               the unit of keepAlive
+         * @return this builder
+         */
+        public Builder connectionPool(int maxIdleConnections, long keepAlive, TimeUnit unit) {
+            this.maxIdleConnections = maxIdleConnections;
+            this.keepAliveMillis = unit.toMillis(keepAlive);
+            return this;
+        }
+
+        /**
+         * Sets the limits of concurrent asynchronous requests.
+         *
+         * @param maxRequests        the maximum number of requests in total
+         * @param maxRequestsPerHost the maximum number of requests to a host
+         * @return this builder
+         */
+        public Builder maxRequests(int maxRequests, int maxRequestsPerHost) {
+            this.maxRequests = maxRequests;
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * Enables HTTP/2, negotiated on TLS connections. With HTTP/2 the requests of all the senders
+         * are multiplexed over a single connection to the API.
+         *
+         * @param http2 whether HTTP/2 is used
+         * @return this builder
+         */
+        public Builder http2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        public Builder connectTimeout(long timeout, TimeUnit unit) {
+            this.connectTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder readTimeout(long timeout, TimeUnit unit) {
+            this.readTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder writeTimeout(long timeout, TimeUnit unit) {
+            this.writeTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        public MackerelTransport build() {
+            return new MackerelTransport(this);
+        }
+    }
+
+    private static class DefaultTransportHolder {
+        static final MackerelTransport INSTANCE = builder().build();
+    }
+
+    /**
+     * Returns the transport shared by the senders created without a transport.
+     *
+     * @return the default transport
+     */
+    public static MackerelTransport defaultTransport() {
+        return DefaultTransportHolder.INSTANCE;
+    }
+
+    private final OkHttpClient client;
+    private final ConcurrentMap<String, MackerelApiService> services = new ConcurrentHashMap<String, MackerelApiService>();
+
+    private MackerelTransport(Builder builder) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(builder.maxRequests);
+        dispatcher.setMaxRequestsPerHost(builder.maxRequestsPerHost);
+        this.client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(builder.maxIdleConnections, builder.keepAliveMillis, TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .protocols(builder.http2 ?
+                        Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) :
+                        Collections.singletonList(Protocol.HTTP_1_1))
+                .connectTimeout(builder.connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(builder.readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .writeTimeout(builder.writeTimeoutMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the API service of the given base url, which is created once per transport.
+     *
+     * @param baseUrl the base url of the Mackerel API
+     * @return the API service
+     */
+    MackerelApiService apiService(String baseUrl) {
+        MackerelApiService service = services.get(baseUrl);
+        if (service == null) {
+            Retrofit retrofit = new Retrofit.Builder()
+                    .baseUrl(baseUrl)
+                    .client(client)
+                    .addConverterFactory(JacksonConverterFactory.create())
+                    .build();
+            MackerelApiService created = retrofit.create(MackerelApiService.class);
+            service = services.putIfAbsent(baseUrl, created);
+            if (service == null) {
+                service = created;
+            }
+        }
+        return service;
+    }
+
+    /**
+     * Publishes the state of the connection pool and the dispatcher to the registry.
+     * The metrics are named after this class and the given name.
+     *
+     * @param registry the registry the metrics are published to
+     * @param name     the name of this transport
+     */
+    public void instrument(MetricRegistry registry, String name) {
+        final String prefix = MetricRegistry.name(MackerelTransport.class, name);
+        registry.register(MetricRegistry.name(prefix, "connections", "total"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return client.connectionPool().connectionCount();
+            }
+        });
+        registry.register(MetricRegistry.name(prefix, "connections", "idle"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return client.connectionPool().idleConnectionCount();
+            }
+        });
+        registry.register(MetricRegistry.name(prefix, "calls", "running"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return client.dispatcher().runningCallsCount();
+            }
+        });
+        registry.register(MetricRegistry.name(prefix, "calls", "queued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return client.dispatcher().queuedCallsCount();
+            }
+        });
+    }
+
+    /**
+     * Closes the idle connections and stops the dispatcher.
+     * The senders using this transport can't send any more.
+     */
+    @Override
+    public void close() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+}
@@ -0,0 +1,251 @@
+package net.unit8.metrics.mackerel;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local stand-in for the tsdb API of Mackerel, which records the series it accepts
+ * and misbehaves on demand: latency, rate limiting with <code>Retry-After</code>,
+ * bursts of server errors, connection resets and slow reads of the request body.
+ * Every kind of chaos is off until it is set, and can be changed while the server runs.
+ */
+class FakeMackerelServer implements Closeable {
+    enum Outcome {
+        ACCEPTED, RATE_LIMITED, SERVER_ERROR, RESET
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Random random = new Random();
+    private final Set<String> series = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong[] outcomes = new AtomicLong[Outcome.values().length];
+    private final AtomicInteger pendingErrors = new AtomicInteger();
+    private final int port;
+    private final Undertow undertow;
+
+    private volatile long latencyMedianMillis;
+    private volatile double latencySigma;
+    private volatile double rateLimitProbability;
+    private volatile long retryAfterSeconds;
+    private volatile double errorBurstProbability;
+    private volatile int errorBurstLength;
+    private volatile double resetProbability;
+    private volatile double slowReadProbability;
+    private volatile long slowReadMillisPerKilobyte;
+
+    FakeMackerelServer() throws IOException {
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new AtomicLong();
+        }
+        port = findPort();
+        undertow = Undertow.builder()
+                .setHandler(new HttpHandler() {
+                    @Override
+                    public void handleRequest(HttpServerExchange exchange) throws Exception {
+                        if (exchange.isInIoThread()) {
+                            exchange.dispatch(this);
+                            return;
+                        }
+                        handle(exchange);
+                    }
+                })
+                .addHttpListener(port, "localhost")
+                .build();
+        undertow.start();
+    }
+
+    private static int findPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    String getBaseUrl() {
+        return "http://localhost:" + port;
+    }
+
+    /**
+     * Delays each response by a log-normal latency.
+     *
+     * @param median the median latency
+     * @param p99    the 99th percentile of the latency, at least the median
+     * @param unit   the unit of the latencies
+     */
+    FakeMackerelServer latency(long median, long p99, TimeUnit unit) {
+        latencyMedianMillis = unit.toMillis(median);
+        latencySigma = median > 0 ? Math.log((double) p99 / median) / 2.326 : 0;
+        return this;
+    }
+
+    /**
+     * Answers a share of the requests with 429 and a <code>Retry-After</code> header.
+     */
+    FakeMackerelServer rateLimit(double probability, long retryAfterSeconds) {
+        this.rateLimitProbability = probability;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Starts bursts of consecutive 503 responses at random.
+     *
+     * @param probability the probability that a request starts a burst
+     * @param length      the number of requests failed by a burst
+     */
+    FakeMackerelServer errorBursts(double probability, int length) {
+        this.errorBurstProbability = probability;
+        this.errorBurstLength = length;
+        return this;
+    }
+
+    /**
+     * Fails the next requests with 503.
+     *
+     * @param length the number of requests to fail
+     */
+    FakeMackerelServer errorBurst(int length) {
+        pendingErrors.set(length);
+        return this;
+    }
+
+    /**
+     * Closes the connection of a share of the requests without a response.
+     */
+    FakeMackerelServer resets(double probability) {
+        this.resetProbability = probability;
+        return this;
+    }
+
+    /**
+     * Reads the body of a share of the requests a kilobyte at a time.
+     *
+     * @param probability     the share of the requests read slowly
+     * @param millisPerKilobyte the pause after each kilobyte
+     */
+    FakeMackerelServer slowReads(double probability, long millisPerKilobyte) {
+        this.slowReadProbability = probability;
+        this.slowReadMillisPerKilobyte = millisPerKilobyte;
+        return this;
+    }
+
+    /**
+     * Turns every kind of chaos off.
+     */
+    FakeMackerelServer calm() {
+        latencyMedianMillis = 0;
+        rateLimitProbability = 0;
+        errorBurstProbability = 0;
+        pendingErrors.set(0);
+        resetProbability = 0;
+        slowReadProbability = 0;
+        return this;
+    }
+
+    /**
+     * The series accepted so far, as <code>name@time</code>.
+     */
+    Set<String> getSeries() {
+        return series;
+    }
+
+    long count(Outcome outcome) {
+        return outcomes[outcome.ordinal()].get();
+    }
+
+    private void handle(HttpServerExchange exchange) throws IOException, InterruptedException {
+        exchange.startBlocking();
+        byte[] body = read(exchange.getInputStream(),
+                random.nextDouble() < slowReadProbability ? slowReadMillisPerKilobyte : 0);
+
+        if (random.nextDouble() < resetProbability) {
+            outcomes[Outcome.RESET.ordinal()].incrementAndGet();
+            exchange.getConnection().close();
+            return;
+        }
+        final long median = latencyMedianMillis;
+        if (median > 0) {
+            Thread.sleep((long) (median * Math.exp(latencySigma * random.nextGaussian())));
+        }
+
+        if (random.nextDouble() < errorBurstProbability) {
+            pendingErrors.compareAndSet(0, errorBurstLength);
+        }
+        if (takePendingError()) {
+            outcomes[Outcome.SERVER_ERROR.ordinal()].incrementAndGet();
+            respond(exchange, 503, "text/plain", "Service Unavailable");
+        } else if (random.nextDouble() < rateLimitProbability) {
+            outcomes[Outcome.RATE_LIMITED.ordinal()].incrementAndGet();
+            exchange.getResponseHeaders().put(Headers.RETRY_AFTER, Long.toString(retryAfterSeconds));
+            respond(exchange, 429, "text/plain", "Too Many Requests");
+        } else {
+            String encoding = exchange.getRequestHeaders().getFirst(Headers.CONTENT_ENCODING);
+            InputStream in = new ByteArrayInputStream(body);
+            if ("gzip".equalsIgnoreCase(encoding)) {
+                in = new GZIPInputStream(in);
+            }
+            for (JsonNode metric : mapper.readTree(in)) {
+                series.add(metric.get("name").asText() + "@" + metric.get("time").asLong());
+            }
+            outcomes[Outcome.ACCEPTED.ordinal()].incrementAndGet();
+            respond(exchange, 200, "application/json", "{\"success\":true}");
+        }
+    }
+
+    private boolean takePendingError() {
+        for (;;) {
+            int pending = pendingErrors.get();
+            if (pending == 0) {
+                return false;
+            }
+            if (pendingErrors.compareAndSet(pending, pending - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static byte[] read(InputStream in, long millisPerKilobyte) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+            if (millisPerKilobyte > 0) {
+                Thread.sleep(millisPerKilobyte);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpServerExchange exchange, int status, String contentType, String body) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, contentType);
+        exchange.setStatusCode(status);
+        exchange.getResponseSender().send(body);
+    }
+
+    @Override
+    public void close() {
+        undertow.stop();
+    }
+}
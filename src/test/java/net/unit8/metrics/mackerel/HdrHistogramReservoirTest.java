@@ -0,0 +1,38 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class HdrHistogramReservoirTest {
+    @Test
+    public void snapshotHoldsOnlyTheLastInterval() {
+        HdrHistogramReservoir reservoir = new HdrHistogramReservoir(3);
+        for (long i = 1; i <= 1000; i++) {
+            reservoir.update(i);
+        }
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertThat(snapshot.size()).isEqualTo(1000);
+        assertThat(snapshot.getMin()).isEqualTo(1L);
+        assertThat(snapshot.getMax()).isEqualTo(1000L);
+        assertThat(snapshot.getMedian()).isEqualTo(500.0);
+        assertThat(snapshot.get99thPercentile()).isEqualTo(990.0);
+
+        reservoir.update(42);
+        Snapshot next = reservoir.getSnapshot();
+        assertThat(next.size()).isEqualTo(1);
+        assertThat(next.getMax()).isEqualTo(42L);
+        assertThat(next.getValues()).containsExactly(42L);
+    }
+
+    @Test
+    public void ignoresAndCountsNegativeValues() {
+        HdrHistogramReservoir reservoir = new HdrHistogramReservoir();
+        reservoir.update(-1);
+        reservoir.update(5);
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertThat(snapshot.getValues()).containsExactly(5L);
+        assertThat(reservoir.getNegativeValues()).isEqualTo(1L);
+    }
+}
@@ -0,0 +1,90 @@
+package net.unit8.metrics.mackerel;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MackerelAdaptiveControllerTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void growsAdditivelyAndShrinksMultiplicatively() {
+        MackerelAdaptiveController controller = new MackerelAdaptiveController(100, 2100, 1, 8,
+                500, TimeUnit.MILLISECONDS);
+        assertThat(controller.getBatchSize()).isEqualTo(100);
+        assertThat(controller.getConcurrency()).isEqualTo(1);
+
+        controller.responded(200, System.nanoTime(), FAST, 100);
+        assertThat(controller.getBatchSize()).isEqualTo(200);
+        for (int i = 0; i < 30; i++) {
+            controller.responded(200, System.nanoTime(), FAST, 1000);
+        }
+        assertThat(controller.getBatchSize()).isEqualTo(2100);
+        int concurrency = controller.getConcurrency();
+        assertThat(concurrency).isGreaterThan(1);
+
+        controller.responded(200, System.nanoTime(), SLOW, 2100);
+        assertThat(controller.getBatchSize()).isEqualTo(1575);
+        controller.responded(413, System.nanoTime(), FAST, 1000);
+        assertThat(controller.getBatchSize()).isEqualTo(500);
+        controller.responded(429, System.nanoTime(), FAST, 500);
+        assertThat(controller.getBatchSize()).isEqualTo(500);
+        assertThat(controller.getConcurrency()).isEqualTo(concurrency / 2);
+    }
+
+    @Test
+    public void shrinksOncePerRound() {
+        MackerelAdaptiveController controller = new MackerelAdaptiveController(100, 2100, 1, 8,
+                500, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 30; i++) {
+            controller.responded(200, System.nanoTime(), FAST, 1000);
+        }
+        int concurrency = controller.getConcurrency();
+        long sentAt = System.nanoTime();
+
+        controller.responded(503, sentAt, FAST, 2100);
+        assertThat(controller.getBatchSize()).isEqualTo(1050);
+        controller.responded(503, sentAt, FAST, 2100);
+        controller.responded(200, sentAt, SLOW, 2100);
+        controller.failed(sentAt, 2100);
+        assertThat(controller.getBatchSize()).isEqualTo(1050);
+        assertThat(controller.getConcurrency()).isEqualTo(Math.max(1, concurrency / 2));
+
+        controller.responded(503, System.nanoTime(), FAST, 1050);
+        assertThat(controller.getBatchSize()).isEqualTo(525);
+    }
+
+    @Test
+    public void clientErrorsDoNotTakeTheDecreaseOfTheRound() {
+        MackerelAdaptiveController controller = new MackerelAdaptiveController(100, 2100, 1, 8,
+                500, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 30; i++) {
+            controller.responded(200, System.nanoTime(), FAST, 1000);
+        }
+        long sentAt = System.nanoTime();
+
+        controller.responded(400, sentAt, FAST, 2100);
+        controller.responded(403, sentAt, FAST, 2100);
+        assertThat(controller.getBatchSize()).isEqualTo(2100);
+        controller.responded(413, sentAt, FAST, 1600);
+        controller.responded(413, sentAt, FAST, 1600);
+        assertThat(controller.getBatchSize()).isEqualTo(800);
+        controller.responded(503, sentAt, FAST, 800);
+        assertThat(controller.getBatchSize()).isEqualTo(400);
+    }
+
+    @Test
+    public void staysWithinTheBounds() {
+        MackerelAdaptiveController controller = new MackerelAdaptiveController(100, 2100, 2, 8,
+                500, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 10; i++) {
+            controller.responded(503, System.nanoTime(), FAST, 100);
+            controller.failed(System.nanoTime(), 0);
+        }
+        assertThat(controller.getBatchSize()).isEqualTo(100);
+        assertThat(controller.getConcurrency()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,172 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.MetricAttribute;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MackerelAggregatorTest {
+    @Test
+    public void mergesForwardedSeries() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        MackerelAggregator aggregator = new MackerelAggregator(new InetSocketAddress("127.0.0.1", 0), sender);
+        aggregator.start(1, TimeUnit.HOURS);
+        MackerelForwarder first = new MackerelForwarder(aggregator.getLocalAddress(), "first");
+        MackerelForwarder second = new MackerelForwarder(aggregator.getLocalAddress(), "second");
+        try {
+            first.add("app.requests.count", 1, 100);
+            first.add("app.latency.max", 5, 100);
+            first.add("app.pool.size", 4, 100);
+            first.flush();
+            second.send("app.requests.count", 2, 160);
+            second.send("app.latency.max", 7, 160);
+            second.send("app.pool.size", 8, 160);
+            second.flush();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (aggregator.getReceivedRecords() < 6 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            aggregator.flush();
+        } finally {
+            first.close();
+            second.close();
+            aggregator.close();
+        }
+        assertThat(sender.values.get("app.requests.count")).isEqualTo(3.0);
+        assertThat(sender.values.get("app.latency.max")).isEqualTo(7.0);
+        assertThat(sender.values.get("app.pool.size")).isEqualTo(6.0);
+        assertThat(sender.timestamps.get("app.requests.count")).isEqualTo(160L);
+    }
+
+    @Test
+    public void mergesForwardedHistograms() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        MackerelAggregator aggregator = new MackerelAggregator(new InetSocketAddress("127.0.0.1", 0), sender);
+        aggregator.start(1, TimeUnit.HOURS);
+        MackerelForwarder first = new MackerelForwarder(aggregator.getLocalAddress(), "first");
+        MackerelForwarder second = new MackerelForwarder(aggregator.getLocalAddress(), "second");
+        String[] seriesNames = new String[MetricAttribute.values().length];
+        seriesNames[MetricAttribute.P99.ordinal()] = "app.latency.p99";
+        try {
+            HdrHistogramReservoir low = new HdrHistogramReservoir(2);
+            HdrHistogramReservoir high = new HdrHistogramReservoir(2);
+            for (int i = 1; i <= 100; i++) {
+                low.update(i);
+                high.update(100 + i);
+            }
+            assertThat(first.addSnapshot(seriesNames, low.getSnapshot(), 2.0, 100)).isTrue();
+            first.flush();
+            assertThat(second.addSnapshot(seriesNames, high.getSnapshot(), 2.0, 160)).isTrue();
+            second.flush();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (aggregator.getReceivedRecords() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            aggregator.flush();
+        } finally {
+            first.close();
+            second.close();
+            aggregator.close();
+        }
+        // the 99th percentile of 1..200, where the mean of those of each source would be 298
+        assertThat(sender.values.get("app.latency.p99").doubleValue()).isEqualTo(396.0, within(4.0));
+        assertThat(sender.timestamps.get("app.latency.p99")).isEqualTo(160L);
+        assertThat(aggregator.getUnmergeableSeries()).isEqualTo(0L);
+    }
+
+    @Test
+    public void keepsTheLatestValueOfEachSource() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        MackerelAggregator aggregator = new MackerelAggregator(new InetSocketAddress("127.0.0.1", 0), sender);
+        try {
+            aggregator.merge(datagram("first", 0, "app.requests.count", 1, 100));
+            aggregator.merge(datagram("first", 1, "app.requests.count", 2, 160));
+            aggregator.merge(datagram("second", 0, "app.requests.count", 4, 100));
+            aggregator.flush();
+        } finally {
+            aggregator.close();
+        }
+        assertThat(sender.values.get("app.requests.count")).isEqualTo(6.0);
+        assertThat(sender.timestamps.get("app.requests.count")).isEqualTo(160L);
+    }
+
+    @Test
+    public void sendsPercentilesOfASingleSourceOnly() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        MackerelAggregator aggregator = new MackerelAggregator(new InetSocketAddress("127.0.0.1", 0), sender);
+        try {
+            aggregator.merge(datagram("first", 0, "app.latency.p99", 10, 100));
+            aggregator.merge(datagram("second", 0, "app.latency.p99", 20, 100));
+            aggregator.merge(datagram("first", 1, "app.size.p99", 30, 100));
+            aggregator.flush();
+        } finally {
+            aggregator.close();
+        }
+        assertThat(sender.values.containsKey("app.latency.p99")).isFalse();
+        assertThat(sender.values.get("app.size.p99")).isEqualTo(30.0);
+        assertThat(aggregator.getUnmergeableSeries()).isEqualTo(1L);
+    }
+
+    @Test
+    public void countsLostAndTruncatedDatagrams() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        MackerelAggregator aggregator = new MackerelAggregator(new InetSocketAddress("127.0.0.1", 0), sender);
+        try {
+            aggregator.merge(datagram("first", 0, "app.requests.count", 1, 100));
+            aggregator.merge(datagram("first", 3, "app.requests.count", 2, 160));
+            ByteBuffer truncated = datagram("second", 0, "app.pool.size", 4, 100);
+            truncated.limit(truncated.limit() - 1);
+            aggregator.merge(truncated);
+            aggregator.flush();
+        } finally {
+            aggregator.close();
+        }
+        assertThat(aggregator.getDroppedDatagrams()).isEqualTo(3L);
+        assertThat(aggregator.getReceivedRecords()).isEqualTo(2L);
+        assertThat(sender.values.get("app.requests.count")).isEqualTo(2.0);
+    }
+
+    private static ByteBuffer datagram(String source, int sequence, String name, double value, long timestamp) {
+        byte[] sourceBytes = source.getBytes(MackerelForwarder.UTF_8);
+        byte[] nameBytes = name.getBytes(MackerelForwarder.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(MackerelForwarder.MAX_DATAGRAM_SIZE);
+        buffer.put(MackerelForwarder.VERSION);
+        buffer.putShort((short) sourceBytes.length);
+        buffer.put(sourceBytes);
+        buffer.putInt(sequence);
+        buffer.put((byte) MackerelForwarder.mergeOp(name).ordinal());
+        buffer.putShort((short) nameBytes.length);
+        buffer.put(nameBytes);
+        buffer.putDouble(value);
+        buffer.putLong(timestamp);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static class RecordingSender extends MackerelSender {
+        final Map<String, Double> values = new HashMap<String, Double>();
+        final Map<String, Long> timestamps = new HashMap<String, Long>();
+
+        RecordingSender() {
+            super("test", "test", "http://localhost:8080");
+        }
+
+        @Override
+        void add(String name, double value, long timestamp) {
+            values.put(name, value);
+            timestamps.put(name, timestamp);
+        }
+
+        @Override
+        void flush() {
+        }
+    }
+}
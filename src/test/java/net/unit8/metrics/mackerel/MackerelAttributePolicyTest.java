@@ -0,0 +1,41 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.MetricAttribute;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MackerelAttributePolicyTest {
+    @Test
+    public void matchesPrefixesGlobsAndRegularExpressions() {
+        assertThat(MackerelAttributePolicy.compile("api").matcher("api.users").matches()).isTrue();
+        assertThat(MackerelAttributePolicy.compile("api").matcher("api").matches()).isTrue();
+        assertThat(MackerelAttributePolicy.compile("api").matcher("apis").matches()).isFalse();
+        assertThat(MackerelAttributePolicy.compile("glob:api.*.latency").matcher("api.users.latency").matches()).isTrue();
+        assertThat(MackerelAttributePolicy.compile("glob:api.*.latency").matcher("api.users.v2.latency").matches()).isFalse();
+        assertThat(MackerelAttributePolicy.compile("glob:api.**").matcher("api.users.v2.latency").matches()).isTrue();
+        assertThat(MackerelAttributePolicy.compile("regex:.*\\.slo\\..*").matcher("app.slo.checkout").matches()).isTrue();
+    }
+
+    @Test
+    public void resolvesTheFirstMatchWithoutTheDisabledAttributes() {
+        Map<String, Set<MetricAttribute>> policies = new LinkedHashMap<String, Set<MetricAttribute>>();
+        policies.put("api.checkout", EnumSet.of(MetricAttribute.P99, MetricAttribute.P999));
+        policies.put("api", EnumSet.of(MetricAttribute.COUNT));
+        MackerelAttributePolicy policy = new MackerelAttributePolicy(policies,
+                Collections.singleton(MetricAttribute.P999));
+
+        assertThat(policy.attributes("api.checkout"))
+                .isEqualTo(MackerelAttributePolicy.mask(EnumSet.of(MetricAttribute.P99)));
+        assertThat(policy.attributes("api.search"))
+                .isEqualTo(MackerelAttributePolicy.mask(EnumSet.of(MetricAttribute.COUNT)));
+        assertThat(policy.attributes("db.query"))
+                .isEqualTo(MackerelAttributePolicy.ALL & ~MackerelAttributePolicy.mask(EnumSet.of(MetricAttribute.P999)));
+    }
+}
@@ -0,0 +1,30 @@
+package net.unit8.metrics.mackerel;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MackerelChangeSuppressorTest {
+    @Test
+    public void sendsChangesAndHeartbeats() {
+        MackerelChangeSuppressor suppressor = new MackerelChangeSuppressor(0.5, 300);
+        assertThat(suppressor.shouldSend("pool.size", 10.0, 0)).isTrue();
+        assertThat(suppressor.shouldSend("pool.size", 10.0, 60)).isFalse();
+        assertThat(suppressor.shouldSend("pool.size", 10.4, 120)).isFalse();
+        assertThat(suppressor.shouldSend("pool.size", 11.0, 180)).isTrue();
+        assertThat(suppressor.shouldSend("pool.size", 11.0, 420)).isFalse();
+        assertThat(suppressor.shouldSend("pool.size", 11.0, 480)).isTrue();
+        assertThat(suppressor.shouldSend("pool.size", Double.NaN, 540)).isTrue();
+        assertThat(suppressor.shouldSend("pool.size", 11.0, 600)).isTrue();
+    }
+
+    @Test
+    public void purgesStaleSeriesWhenGrowing() {
+        MackerelChangeSuppressor suppressor = new MackerelChangeSuppressor(0, 60);
+        for (int i = 0; i < 10000; i++) {
+            suppressor.shouldSend("series" + i, 1.0, i);
+        }
+        assertThat(suppressor.size()).isLessThan(10000);
+        assertThat(suppressor.shouldSend("series9999", 1.0, 10000)).isFalse();
+    }
+}
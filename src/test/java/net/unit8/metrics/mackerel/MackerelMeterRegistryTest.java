@@ -0,0 +1,47 @@
+package net.unit8.metrics.mackerel;
+
+import io.micrometer.core.instrument.MockClock;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MackerelMeterRegistryTest {
+    private static final MackerelRegistryConfig CONFIG = new MackerelRegistryConfig() {
+        @Override
+        public String get(String key) {
+            // publishes only when the test asks
+            return key.equals("mackerel.enabled") ? "false" : null;
+        }
+    };
+
+    @Test
+    public void publishesTheValuesOfTheStep() {
+        MockClock clock = new MockClock();
+        MackerelReporterTest.RecordingSender sender = new MackerelReporterTest.RecordingSender();
+        MackerelMeterRegistry registry = new MackerelMeterRegistry(CONFIG, clock, sender);
+        registry.counter("http.requests", "status", "200").increment(3);
+        registry.timer("http.latency", "uri", "/users").record(20, TimeUnit.MILLISECONDS);
+        registry.gauge("pool.size", 8);
+        clock.add(Duration.ofMinutes(1));
+
+        registry.publish();
+
+        assertThat(sender.names).contains(
+                "http.requests.200.count",
+                "http.latency._users.count", "http.latency._users.sum", "http.latency._users.mean",
+                "pool.size");
+        assertThat(sender.values.get(sender.names.indexOf("http.requests.200.count"))).isEqualTo(3.0);
+        assertThat(sender.values.get(sender.names.indexOf("http.latency._users.mean"))).isEqualTo(20.0);
+        assertThat(sender.timestamps).containsOnly(60L);
+    }
+
+    @Test
+    public void namesPercentilesAsTheReporter() {
+        assertThat(MackerelMeterRegistry.percentileCode(0.5)).isEqualTo("p50");
+        assertThat(MackerelMeterRegistry.percentileCode(0.95)).isEqualTo("p95");
+        assertThat(MackerelMeterRegistry.percentileCode(0.999)).isEqualTo("p999");
+    }
+}
@@ -0,0 +1,121 @@
+package net.unit8.metrics.mackerel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MackerelPushQueueTest {
+    @Test
+    public void dropsNewestWhenFull() {
+        MackerelPushQueue queue = new MackerelPushQueue(4, 0, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 6; i++) {
+            queue.offer("metric" + i, i, i);
+        }
+        final List<String> names = new ArrayList<String>();
+        MackerelPushQueue.Consumer consumer = new MackerelPushQueue.Consumer() {
+            @Override
+            public void accept(String name, double value, long timestamp) {
+                names.add(name);
+            }
+        };
+        assertThat(queue.drain(consumer)).isEqualTo(4);
+        assertThat(names).containsExactly("metric0", "metric1", "metric2", "metric3");
+        assertThat(queue.takeOverflows()).isEqualTo(2L);
+
+        assertThat(queue.offer("metric6", 6, 6)).isTrue();
+        assertThat(queue.drain(consumer)).isEqualTo(1);
+    }
+
+    @Test
+    public void blockedProducersLoseNothing() throws Exception {
+        final MackerelPushQueue queue = new MackerelPushQueue(64, 30, TimeUnit.SECONDS);
+        final int producers = 4;
+        final int perProducer = 10000;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer("producer" + producer, i, i);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+        final long[] lastValues = {-1, -1, -1, -1};
+        final int[] count = {0};
+        MackerelPushQueue.Consumer consumer = new MackerelPushQueue.Consumer() {
+            @Override
+            public void accept(String name, double value, long timestamp) {
+                int producer = name.charAt(name.length() - 1) - '0';
+                assertThat((long) value).isEqualTo(lastValues[producer] + 1);
+                lastValues[producer] = (long) value;
+                seen.add(name);
+                count[0]++;
+            }
+        };
+        long deadline = System.currentTimeMillis() + 30000;
+        while (count[0] < producers * perProducer && System.currentTimeMillis() < deadline) {
+            queue.drain(consumer);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(count[0]).isEqualTo(producers * perProducer);
+        assertThat(seen.size()).isEqualTo(producers);
+        assertThat(queue.takeOverflows()).isEqualTo(0L);
+    }
+
+    @Test
+    public void roundsTheCapacityUpToAPowerOfTwo() {
+        assertThat(new MackerelPushQueue(1, 0, TimeUnit.MILLISECONDS).getCapacity()).isEqualTo(2);
+        assertThat(new MackerelPushQueue(2, 0, TimeUnit.MILLISECONDS).getCapacity()).isEqualTo(2);
+        assertThat(new MackerelPushQueue(3, 0, TimeUnit.MILLISECONDS).getCapacity()).isEqualTo(4);
+        assertThat(new MackerelPushQueue(4, 0, TimeUnit.MILLISECONDS).getCapacity()).isEqualTo(4);
+        assertThat(new MackerelPushQueue(5, 0, TimeUnit.MILLISECONDS).getCapacity()).isEqualTo(8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyCapacity() {
+        new MackerelPushQueue(0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void blockingIsBoundedAndEndsWithClose() throws Exception {
+        final MackerelPushQueue queue = new MackerelPushQueue(2, 50, TimeUnit.MILLISECONDS);
+        queue.offer("metric0", 0, 0);
+        queue.offer("metric1", 1, 1);
+        long start = System.nanoTime();
+        assertThat(queue.offer("metric2", 2, 2)).isFalse();
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(queue.takeOverflows()).isEqualTo(1L);
+
+        final MackerelPushQueue blocking = new MackerelPushQueue(2, 1, TimeUnit.HOURS);
+        blocking.offer("metric0", 0, 0);
+        blocking.offer("metric1", 1, 1);
+        final boolean[] offered = {true};
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                offered[0] = blocking.offer("metric2", 2, 2);
+            }
+        });
+        producer.start();
+        blocking.close();
+        producer.join(10000);
+        assertThat(producer.isAlive()).isFalse();
+        assertThat(offered[0]).isFalse();
+        assertThat(blocking.offer("metric3", 3, 3)).isFalse();
+    }
+}
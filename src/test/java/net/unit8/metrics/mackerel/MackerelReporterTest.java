@@ -1,10 +1,29 @@
 package net.unit8.metrics.mackerel;
 
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricAttribute;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import static org.assertj.core.api.Assertions.*;
+
 public class MackerelReporterTest {
     @Test(expected = IllegalArgumentException.class)
     public void test() {
@@ -13,4 +32,548 @@ public class MackerelReporterTest {
         MackerelReporter reporter = MackerelReporter.forRegistry(registry).build(sender);
         reporter.start(10, TimeUnit.SECONDS);
     }
+
+    @Test
+    public void indexedReportMatchesRegistryReport() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("requests").inc(3);
+        registry.register("pool.size", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 8;
+            }
+        });
+        registry.meter("hits").mark();
+
+        RecordingSender plain = new RecordingSender();
+        MackerelReporter.forRegistry(registry).prefixedWith("app").build(plain).report();
+        RecordingSender indexed = new RecordingSender();
+        MackerelReporter indexedReporter = MackerelReporter.forRegistry(registry)
+                .prefixedWith("app")
+                .indexMetrics(true)
+                .build(indexed);
+        indexedReporter.report();
+        assertThat(indexed.names).isEqualTo(plain.names);
+        assertThat(indexed.names).contains("app.requests.count", "app.pool.size", "app.hits.m1_rate");
+
+        registry.remove("requests");
+        Counter added = registry.counter("errors");
+        added.inc();
+        indexed.names.clear();
+        indexedReporter.report();
+        assertThat(indexed.names).contains("app.errors.count");
+        assertThat(indexed.names).doesNotContain("app.requests.count");
+        indexedReporter.stop();
+    }
+
+    @Test
+    public void routesSeriesByFilter() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("jvm.threads").inc();
+        registry.counter("app.requests").inc();
+
+        RecordingSender host = new RecordingSender();
+        RecordingSender service = new RecordingSender();
+        MackerelReporter.forRegistry(registry)
+                .route(new MetricFilter() {
+                    @Override
+                    public boolean matches(String name, Metric metric) {
+                        return name.startsWith("jvm.");
+                    }
+                }, host)
+                .route(MetricFilter.ALL, service)
+                .build()
+                .report();
+
+        assertThat(host.names).containsExactly("jvm.threads.count");
+        assertThat(service.names).containsExactly("app.requests.count", "jvm.threads.count");
+    }
+
+    @Test
+    public void publishesInternalMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("app.requests").inc();
+        MetricRegistry self = new MetricRegistry();
+
+        MackerelReporter.forRegistry(registry)
+                .instrumentWith(self)
+                .build(new RecordingSender())
+                .report();
+
+        assertThat(self.getTimers().get(MetricRegistry.name(MackerelReporter.class, "collect", "counters")).getCount())
+                .isEqualTo(1L);
+        assertThat(self.getGauges().get(MetricRegistry.name(MackerelSender.class, "test", "buffer.size")).getValue())
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void parallelSnapshotsKeepTheOrder() {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < 300; i++) {
+            registry.histogram("histogram." + i).update(i);
+            registry.timer("timer." + i).update(i, TimeUnit.MILLISECONDS);
+        }
+        Set<MetricAttribute> rates = EnumSet.of(MetricAttribute.M1_RATE, MetricAttribute.M5_RATE,
+                MetricAttribute.M15_RATE, MetricAttribute.MEAN_RATE);
+
+        RecordingSender sequential = new RecordingSender();
+        MackerelReporter.forRegistry(registry)
+                .disabledMetricAttributes(rates)
+                .build(sequential)
+                .report();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            RecordingSender parallel = new RecordingSender();
+            MackerelReporter.forRegistry(registry)
+                    .disabledMetricAttributes(rates)
+                    .computeSnapshotsOn(executor)
+                    .build(parallel)
+                    .report();
+            assertThat(parallel.names).isEqualTo(sequential.names);
+            assertThat(parallel.values).isEqualTo(sequential.values);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void aFailingSnapshotSkipsOnlyItsMetric() {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < 100; i++) {
+            registry.histogram("histogram." + i).update(i);
+        }
+        registry.register("histogram.broken", new Histogram(new UniformReservoir()) {
+            @Override
+            public Snapshot getSnapshot() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            RecordingSender sender = new RecordingSender();
+            MackerelReporter.forRegistry(registry)
+                    .computeSnapshotsOn(executor)
+                    .build(sender)
+                    .report();
+            assertThat(sender.names).contains("histogram.0.p99", "histogram.99.p99");
+            assertThat(sender.names).doesNotContain("histogram.broken.p99");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void appliesTheFirstMatchingAttributePolicy() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.timer("api.checkout.latency").update(10, TimeUnit.MILLISECONDS);
+        registry.timer("api.search.latency").update(10, TimeUnit.MILLISECONDS);
+        registry.timer("db.query").update(10, TimeUnit.MILLISECONDS);
+
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter.forRegistry(registry)
+                .disabledMetricAttributes(EnumSet.of(MetricAttribute.P999))
+                .attributesFor("regex:api\\.checkout\\..*", EnumSet.allOf(MetricAttribute.class))
+                .attributesFor("glob:api.*.latency", EnumSet.of(MetricAttribute.COUNT, MetricAttribute.M1_RATE))
+                .build(sender)
+                .report();
+
+        assertThat(sender.names).contains("api.checkout.latency.p99", "api.checkout.latency.count",
+                "api.search.latency.count", "api.search.latency.m1_rate", "db.query.p99");
+        assertThat(sender.names).doesNotContain("api.checkout.latency.p999",
+                "api.search.latency.p99", "api.search.latency.max", "db.query.p999");
+    }
+
+    @Test
+    public void foldsTheLeastActiveMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        for (String endpoint : new String[]{"a", "b", "c", "d", "e"}) {
+            registry.counter("api." + endpoint).inc();
+        }
+        registry.counter("jvm.threads").inc();
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .limitCardinality("api", 2)
+                .build(sender);
+
+        reporter.report();
+        assertThat(sender.names).containsExactly("api.a.count", "api.b.count", "jvm.threads.count",
+                "api.other.count", "api.other.folded");
+
+        registry.counter("api.d").inc(50);
+        registry.counter("api.e").inc(100);
+        reporter.report();
+        sender.names.clear();
+        sender.values.clear();
+        reporter.report();
+        assertThat(sender.names).containsExactly("api.d.count", "api.e.count", "jvm.threads.count",
+                "api.other.count", "api.other.folded");
+        assertThat(sender.values.subList(3, 5)).containsExactly(3.0, 3.0);
+    }
+
+    @Test
+    public void collectsShardsAtAlignedTimestamps() {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < 20; i++) {
+            registry.counter("counter" + i).inc();
+        }
+        ManualClock clock = new ManualClock();
+        clock.time = 600000 + 1;
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .withClock(clock)
+                .collectInShards(2)
+                .build(sender);
+        reporter.start(1, TimeUnit.MINUTES);
+        try {
+            reporter.report();
+            List<String> first = new ArrayList<String>(sender.names);
+            clock.time += 30000;
+            reporter.report();
+
+            assertThat(first.size()).isGreaterThan(0);
+            assertThat(first.size()).isLessThan(20);
+            assertThat(sender.names.size()).isEqualTo(20);
+            assertThat(new ArrayList<Long>(new TreeSet<Long>(sender.timestamps))).containsExactly(600L);
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void collectsShardsWhenTheSchedulerFiresEarly() {
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < 20; i++) {
+            registry.counter("counter" + i).inc();
+        }
+        ManualClock clock = new ManualClock();
+        clock.time = 600000 - 5;
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .withClock(clock)
+                .collectInShards(2)
+                .build(sender);
+        reporter.start(1, TimeUnit.MINUTES);
+        try {
+            reporter.report();
+            clock.time += 30000;
+            reporter.report();
+
+            assertThat(sender.names.size()).isEqualTo(20);
+            assertThat(new ArrayList<Long>(new TreeSet<Long>(sender.timestamps))).containsExactly(600L);
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void jitteredReportsHaveAlignedTimestamps() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("requests").inc();
+        ManualClock clock = new ManualClock();
+        long jitter = MackerelReporter.jitterMillis("host-1", 60000);
+        clock.time = 600000 + jitter - 5;
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .withClock(clock)
+                .jitterBy("host-1")
+                .build(sender);
+        reporter.start(1, TimeUnit.MINUTES);
+        try {
+            for (int minute = 0; minute < 3; minute++) {
+                reporter.report();
+                clock.time += 60000;
+            }
+
+            assertThat(sender.timestamps).containsExactly(600L, 660L, 720L);
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void reportsTiersAtTheirOwnIntervals() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("requests").inc();
+        registry.counter("capacity.disk").inc();
+        ManualClock clock = new ManualClock();
+        clock.time = 3600000 + 1;
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .withClock(clock)
+                .tier(new MetricFilter() {
+                    @Override
+                    public boolean matches(String name, Metric metric) {
+                        return name.startsWith("capacity.");
+                    }
+                }, 1, TimeUnit.HOURS)
+                .build(sender);
+        reporter.start(1, TimeUnit.MINUTES);
+        try {
+            for (int minute = 0; minute < 3; minute++) {
+                reporter.report();
+                clock.time += 60000;
+            }
+
+            assertThat(sender.names).containsExactly("capacity.disk.count", "requests.count",
+                    "requests.count", "requests.count");
+            assertThat(sender.timestamps).containsExactly(3600L, 3600L, 3660L, 3720L);
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void reportsTiersWhenTheSchedulerFiresEarly() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("requests").inc();
+        registry.counter("capacity.disk").inc();
+        ManualClock clock = new ManualClock();
+        clock.time = 3600000 - 3;
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .withClock(clock)
+                .tier(new MetricFilter() {
+                    @Override
+                    public boolean matches(String name, Metric metric) {
+                        return name.startsWith("capacity.");
+                    }
+                }, 1, TimeUnit.HOURS)
+                .build(sender);
+        reporter.start(1, TimeUnit.MINUTES);
+        try {
+            for (int minute = 0; minute < 2; minute++) {
+                reporter.report();
+                clock.time += 60000;
+            }
+
+            assertThat(sender.names).containsExactly("capacity.disk.count", "requests.count", "requests.count");
+            assertThat(sender.timestamps).containsExactly(3600L, 3600L, 3660L);
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void reportsJitteredTiersAtTheirOwnIntervals() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("requests").inc();
+        registry.counter("capacity.disk").inc();
+        ManualClock clock = new ManualClock();
+        clock.time = 3600000 + MackerelReporter.jitterMillis("host-1", 60000);
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .withClock(clock)
+                .jitterBy("host-1")
+                .tier(new MetricFilter() {
+                    @Override
+                    public boolean matches(String name, Metric metric) {
+                        return name.startsWith("capacity.");
+                    }
+                }, 2, TimeUnit.MINUTES)
+                .build(sender);
+        reporter.start(1, TimeUnit.MINUTES);
+        try {
+            for (int minute = 0; minute < 4; minute++) {
+                reporter.report();
+                clock.time += 60000;
+            }
+
+            assertThat(sender.names).containsExactly("capacity.disk.count", "requests.count", "requests.count",
+                    "capacity.disk.count", "requests.count", "requests.count");
+            assertThat(sender.timestamps).containsExactly(3600L, 3600L, 3660L, 3720L, 3720L, 3780L);
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsATierWhichIsNotAMultipleOfThePeriod() {
+        MackerelReporter reporter = MackerelReporter.forRegistry(new MetricRegistry())
+                .tier(MetricFilter.ALL, 90, TimeUnit.SECONDS)
+                .build(new RecordingSender());
+        try {
+            reporter.start(1, TimeUnit.MINUTES);
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void jitterIsDeterministicWithinThePeriod() {
+        long jitter = MackerelReporter.jitterMillis("host-1", 60000);
+        assertThat(jitter).isEqualTo(MackerelReporter.jitterMillis("host-1", 60000));
+        assertThat(jitter).isBetween(0L, 59999L);
+        assertThat(MackerelReporter.jitterMillis("host-2", 60000)).isNotEqualTo(jitter);
+    }
+
+    @Test
+    public void rollsUpSamplesPerMinute() {
+        MetricRegistry registry = new MetricRegistry();
+        Counter counter = registry.counter("queue");
+        ManualClock clock = new ManualClock();
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .withClock(clock)
+                .sampleAndRollUp(EnumSet.of(MackerelReporter.Rollup.MIN, MackerelReporter.Rollup.MAX))
+                .build(sender);
+
+        for (int second = 0; second < 60; second += 20) {
+            clock.time = second * 1000L;
+            counter.inc(second);
+            reporter.report();
+        }
+        assertThat(sender.names).isEmpty();
+
+        clock.time = 60000L;
+        reporter.report();
+        assertThat(sender.names).containsExactly("queue.count.min", "queue.count.max");
+        assertThat(sender.values).containsExactly(0.0, 60.0);
+        assertThat(sender.timestamps).containsExactly(0L, 0L);
+    }
+
+    @Test
+    public void sendsTheOpenRollupWindowOnStop() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("queue").inc(5);
+        ManualClock clock = new ManualClock();
+        clock.time = 60000L;
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .withClock(clock)
+                .sampleAndRollUp(EnumSet.of(MackerelReporter.Rollup.MAX))
+                .build(sender);
+
+        reporter.report();
+        assertThat(sender.names).isEmpty();
+        reporter.stop();
+        assertThat(sender.names).containsExactly("queue.count");
+        assertThat(sender.values).containsExactly(5.0);
+        assertThat(sender.timestamps).containsExactly(60L);
+    }
+
+    @Test
+    public void rollupAcceptsSubMinutePeriods() {
+        MackerelReporter reporter = MackerelReporter.forRegistry(new MetricRegistry())
+                .sampleAndRollUp(EnumSet.of(MackerelReporter.Rollup.AVG))
+                .build(new RecordingSender());
+        reporter.start(10, TimeUnit.SECONDS);
+        reporter.stop();
+    }
+
+    @Test
+    public void hungGaugesDontHoldUpTheReport() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        MetricRegistry registry = new MetricRegistry();
+        registry.register("hung", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            }
+        });
+        registry.register("fast", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 2;
+            }
+        });
+        MetricRegistry self = new MetricRegistry();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        RecordingSender sender = new RecordingSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .instrumentWith(self)
+                .evaluateGaugesOn(executor, 50, 1, TimeUnit.MINUTES)
+                .build(sender);
+        try {
+            for (int i = 0; i < MackerelGaugeEvaluator.QUARANTINE_MISSES; i++) {
+                long start = System.nanoTime();
+                reporter.report();
+                assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(1));
+            }
+            assertThat(sender.names).containsOnly("fast");
+            assertThat(self.getGauges().get(MetricRegistry.name(MackerelReporter.class, "gauges", "quarantined"))
+                    .getValue()).isEqualTo(1);
+
+            release.countDown();
+            Thread.sleep(100);
+            sender.names.clear();
+            reporter.report();
+            assertThat(sender.names).contains("hung", "fast");
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void handsSnapshotsToASenderWhichTakesThem() {
+        MetricRegistry registry = new MetricRegistry();
+        SnapshotSender sender = new SnapshotSender();
+        MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .hdrHistogramReservoirs(2)
+                .build(sender);
+        reporter.histogram("latency").update(5);
+
+        reporter.report();
+        assertThat(sender.snapshots).containsExactly("latency.p50");
+        assertThat(sender.names).contains("latency.count", "latency.max", "latency.mean", "latency.min");
+        assertThat(sender.names).doesNotContain("latency.p50", "latency.p99", "latency.stddev");
+    }
+
+    static class RecordingSender extends MackerelSender {
+        final List<String> names = new ArrayList<String>();
+        final List<Double> values = new ArrayList<Double>();
+        final List<Long> timestamps = new ArrayList<Long>();
+
+        RecordingSender() {
+            super("test", "test", "http://localhost:8080");
+        }
+
+        @Override
+        void add(String name, double value, long timestamp) {
+            names.add(name);
+            values.add(value);
+            timestamps.add(timestamp);
+        }
+
+        @Override
+        void flush() {
+        }
+    }
+
+    static class ManualClock extends Clock {
+        long time;
+
+        @Override
+        public long getTick() {
+            return time * 1000000L;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+    }
+
+    static class SnapshotSender extends RecordingSender {
+        final List<String> snapshots = new ArrayList<String>();
+
+        @Override
+        boolean acceptsSnapshots() {
+            return true;
+        }
+
+        @Override
+        boolean addSnapshot(String[] seriesNames, Snapshot snapshot, double scale, long timestamp) {
+            if (HdrHistogramReservoir.histogramOf(snapshot) == null) {
+                return false;
+            }
+            snapshots.add(seriesNames[MetricAttribute.P50.ordinal()]);
+            return true;
+        }
+    }
 }
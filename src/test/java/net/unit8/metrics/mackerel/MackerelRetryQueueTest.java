@@ -0,0 +1,64 @@
+package net.unit8.metrics.mackerel;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MackerelRetryQueueTest {
+    @Test
+    public void backsOffAndHonorsRetryAfter() {
+        MackerelRetryQueue queue = new MackerelRetryQueue(100, 1000, 60000, 1024, new Random(1));
+        queue.offer(new byte[10], 1, 0, 0);
+        assertThat(queue.poll(0)).isNull();
+        MackerelRetryQueue.Entry entry = queue.poll(100);
+        assertThat(entry).isNotNull();
+
+        assertThat(queue.reschedule(entry, 100, 5000)).isTrue();
+        queue.offer(new byte[10], 1, 200, 0);
+        assertThat(queue.poll(4000)).isNull();
+        assertThat(queue.poll(5100)).isNotNull();
+    }
+
+    @Test
+    public void evictsTheOldestOverBudgetAndExpires() {
+        MackerelRetryQueue queue = new MackerelRetryQueue(100, 1000, 60000, 100, new Random(1));
+        assertThat(queue.offer(new byte[60], 1, 0, 0)).isEmpty();
+        List<MackerelRetryQueue.Entry> evicted = queue.offer(new byte[60], 2, 10, 0);
+        assertThat(evicted).hasSize(1);
+        assertThat(evicted.get(0).count).isEqualTo(1);
+        assertThat(queue.getBytes()).isEqualTo(60L);
+        assertThat(queue.offer(new byte[200], 3, 20, 0)).hasSize(1);
+
+        assertThat(queue.expire(60010)).isEqualTo(2);
+        assertThat(queue.size()).isEqualTo(0);
+        assertThat(queue.getBytes()).isEqualTo(0L);
+    }
+
+    @Test
+    public void holdsBackNewBatchesUntilRetryAfter() {
+        MackerelRetryQueue queue = new MackerelRetryQueue(100, 1000, 60000, 1024, new Random(1));
+        assertThat(queue.heldBackFor(0)).isEqualTo(0L);
+        queue.offer(new byte[10], 1, 0, 5000);
+        assertThat(queue.heldBackFor(1000)).isEqualTo(4000L);
+        assertThat(queue.heldBackFor(5000)).isEqualTo(0L);
+    }
+
+    @Test
+    public void takesOverTheEntriesOfTheReplacedQueue() {
+        MackerelRetryQueue previous = new MackerelRetryQueue(100, 1000, 60000, 1024, new Random(1));
+        previous.offer(new byte[60], 1, 0, 0);
+        previous.offer(new byte[60], 2, 10, 3000);
+
+        MackerelRetryQueue queue = new MackerelRetryQueue(100, 1000, 60000, 100, new Random(1));
+        List<MackerelRetryQueue.Entry> evicted = queue.takeOver(previous);
+        assertThat(evicted).hasSize(1);
+        assertThat(evicted.get(0).count).isEqualTo(1);
+        assertThat(previous.size()).isEqualTo(0);
+        assertThat(previous.getBytes()).isEqualTo(0L);
+        assertThat(queue.heldBackFor(10)).isEqualTo(3000L);
+        assertThat(queue.poll(3010).count).isEqualTo(2);
+    }
+}
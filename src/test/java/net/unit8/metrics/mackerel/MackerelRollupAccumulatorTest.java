@@ -0,0 +1,53 @@
+package net.unit8.metrics.mackerel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MackerelRollupAccumulatorTest {
+    static class RecordingEmitter implements MackerelRollupAccumulator.Emitter {
+        final List<String> names = new ArrayList<String>();
+        final List<Double> values = new ArrayList<Double>();
+
+        @Override
+        public void emit(int routes, String name, double value, long timestamp) {
+            names.add(name);
+            values.add(value);
+        }
+    }
+
+    @Test
+    public void evictsSeriesWithoutSamplesForAWindow() {
+        MackerelRollupAccumulator accumulator = new MackerelRollupAccumulator(
+                EnumSet.of(MackerelReporter.Rollup.MAX), 60);
+        RecordingEmitter emitter = new RecordingEmitter();
+        accumulator.advance(0, emitter);
+        accumulator.add(1, "removed", 1.0);
+        accumulator.add(1, "kept", 2.0);
+        accumulator.advance(60, emitter);
+        accumulator.add(1, "kept", 3.0);
+        accumulator.advance(120, emitter);
+
+        assertThat(accumulator.size()).isEqualTo(1);
+        assertThat(emitter.names).containsExactly("removed", "kept", "kept");
+        assertThat(emitter.values).containsExactly(1.0, 2.0, 3.0);
+    }
+
+    @Test
+    public void flushesTheOpenWindow() {
+        MackerelRollupAccumulator accumulator = new MackerelRollupAccumulator(
+                EnumSet.of(MackerelReporter.Rollup.SUM), 60);
+        RecordingEmitter emitter = new RecordingEmitter();
+        accumulator.advance(0, emitter);
+        accumulator.add(1, "queue", 1.0);
+        accumulator.add(1, "queue", 2.0);
+
+        assertThat(accumulator.flush(emitter)).isTrue();
+        assertThat(emitter.values).containsExactly(3.0);
+        assertThat(accumulator.flush(emitter)).isFalse();
+    }
+}
@@ -1,5 +1,7 @@
 package net.unit8.metrics.mackerel;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.undertow.Undertow;
@@ -7,23 +9,33 @@ import io.undertow.io.Receiver;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.util.Headers;
+import okio.Buffer;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.*;
 
 public class MackerelSenderTest {
     Undertow undertow;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     ObjectMapper mapper = new ObjectMapper();
     int port;
     int handleCount;
-    List<String> requestBodyList = new ArrayList<String>();
+    volatile int statusCode;
+    volatile long responseDelay;
+    List<String> requestBodyList = Collections.synchronizedList(new ArrayList<String>());
 
     private int findPort() throws IOException {
         ServerSocket socket = null;
@@ -41,22 +53,36 @@ public class MackerelSenderTest {
     @Before
     public void setupServer() throws IOException {
         handleCount = 0;
+        statusCode = 500;
+        responseDelay = 0;
         requestBodyList.clear();
         port = findPort();
         undertow = Undertow.builder()
                 .setHandler(new HttpHandler() {
                     @Override
-                    public void handleRequest(HttpServerExchange exchange) throws Exception {
+                    public synchronized void handleRequest(HttpServerExchange exchange) throws Exception {
                         handleCount += 1;
                         exchange.getRequestReceiver().receiveFullString(new Receiver.FullStringCallback() {
                             @Override
-                            public void handle(HttpServerExchange httpServerExchange, String data) {
+                            public void handle(HttpServerExchange exchange, String data) {
                                 requestBodyList.add(data);
+                                if (responseDelay > 0) {
+                                    try {
+                                        Thread.sleep(responseDelay);
+                                    } catch (InterruptedException ignore) {
+                                    }
+                                }
+                                if (statusCode == 200) {
+                                    exchange.getResponseHeaders().add(Headers.CONTENT_TYPE, "application/json");
+                                    exchange.setStatusCode(200);
+                                    exchange.getResponseSender().send("{\"success\":\"true\"}");
+                                } else {
+                                    exchange.getResponseHeaders().add(Headers.CONTENT_TYPE, "text/plain");
+                                    exchange.setStatusCode(statusCode);
+                                    exchange.getResponseSender().send("error");
+                                }
                             }
                         });
-                        exchange.getResponseHeaders().add(Headers.CONTENT_TYPE, "text/plain");
-                        exchange.setStatusCode(500);
-                        exchange.getResponseSender().send("error");
                     }
                 })
                 .addHttpListener(port, "localhost")
@@ -102,6 +128,215 @@ public class MackerelSenderTest {
         }
     }
 
+    @Test
+    public void sendersShareTheTransport() throws Exception {
+        statusCode = 200;
+        MackerelTransport transport = MackerelTransport.builder().build();
+        try {
+            MetricRegistry registry = new MetricRegistry();
+            transport.instrument(registry, "shared");
+            MackerelSender first = new MackerelSender("first", "test", "http://localhost:" + port, transport);
+            MackerelSender second = new MackerelSender("second", "test", "http://localhost:" + port, transport);
+            first.send("metric1", 1.0, System.currentTimeMillis());
+            first.flush();
+            second.send("metric1", 2.0, System.currentTimeMillis());
+            second.flush();
+
+            assertThat(handleCount).isEqualTo(2);
+            assertThat(registry.getGauges()
+                    .get(MetricRegistry.name(MackerelTransport.class, "shared", "connections", "total"))
+                    .getValue()).isEqualTo(1);
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void flushSplitsIntoBatches() throws Exception {
+        statusCode = 200;
+        MackerelSender sender = new MackerelSender("test", "test", "http://localhost:" + port);
+        sender.setMaxBatchSize(2);
+        sender.setMaxConcurrentRequests(2);
+        for (int i = 0; i < 5; i++) {
+            sender.send("metric" + i, (double) i, System.currentTimeMillis());
+        }
+        sender.flush();
+
+        assertThat(handleCount).isEqualTo(3);
+        int total = 0;
+        for (String body : requestBodyList) {
+            List<MackerelServiceMetric> metric = mapper.readValue(body, new TypeReference<List<MackerelServiceMetric>>() {});
+            assertThat(metric.size()).isLessThanOrEqualTo(2);
+            total += metric.size();
+        }
+        assertThat(total).isEqualTo(5);
+    }
+
+    @Test
+    public void flushOfAnEmptyBufferSendsNothing() {
+        statusCode = 200;
+        MackerelSender sender = new MackerelSender("test", "test", "http://localhost:" + port);
+        sender.flush();
+        sender.close();
+        assertThat(handleCount).isEqualTo(0);
+    }
+
+    @Test
+    public void splitByBytes() {
+        MackerelSender sender = new MackerelSender("test", "test", "http://localhost:" + port);
+        sender.setMaxBatchBytes(100);
+        MackerelMetricBuffer metrics = new MackerelMetricBuffer();
+        for (int i = 0; i < 3; i++) {
+            metrics.add("metric" + i, 1.0, 0);
+        }
+        assertThat(sender.split(metrics)).hasSize(3);
+    }
+
+    @Test
+    public void bufferEvictsNamesUnusedInTheLastCycle() {
+        MackerelMetricBuffer metrics = new MackerelMetricBuffer();
+        metrics.add("kept", 1.0, 0);
+        metrics.add("churned", 1.0, 0);
+        metrics.clear();
+        metrics.add("kept", 2.0, 1);
+        metrics.add("new", 3.0, 1);
+        metrics.clear();
+        assertThat(metrics.dictionarySize()).isEqualTo(2);
+
+        metrics.add("new", 4.0, 2);
+        metrics.add("kept", 5.0, 2);
+        assertThat(metrics.name(0)).isEqualTo("new");
+        assertThat(metrics.name(1)).isEqualTo("kept");
+        assertThat(metrics.value(1)).isEqualTo(5.0);
+    }
+
+    @Test
+    public void streamingBodyIsReadableJson() throws Exception {
+        MackerelMetricBuffer metrics = new MackerelMetricBuffer();
+        metrics.add("metric\"1", 1.5, 100);
+        metrics.add("metric2", Double.NaN, 200);
+        metrics.add("metric\"1", 2.5, 300);
+        Buffer buffer = new Buffer();
+        new MackerelMetricsRequestBody(new MackerelMetricBuffer.Slice(metrics, 0, metrics.size()), false).writeTo(buffer);
+
+        List<MackerelServiceMetric> parsed = mapper.readValue(buffer.readByteArray(), new TypeReference<List<MackerelServiceMetric>>() {});
+        assertThat(parsed).containsExactly(
+                new MackerelServiceMetric("metric\"1", 1.5, 100),
+                new MackerelServiceMetric("metric2", null, 200),
+                new MackerelServiceMetric("metric\"1", 2.5, 300));
+    }
+
+    @Test
+    public void replaysSpooledBatches() throws Exception {
+        MackerelSender sender = new MackerelSender("test", "test", "http://localhost:" + port);
+        sender.setSpool(new MackerelSpool(folder.newFolder()));
+        sender.send("metric1", 10.0, 100);
+        try {
+            sender.flush();
+            fail("Exception must occur");
+        } catch (Exception ignore) {
+        }
+
+        statusCode = 200;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (requestBodyList.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        sender.close();
+        assertThat(requestBodyList).hasSize(2);
+        assertThat(requestBodyList.get(1)).isEqualTo(requestBodyList.get(0));
+    }
+
+    @Test
+    public void dropsSpooledBatchesRejectedByTheServer() throws Exception {
+        MackerelSender sender = new MackerelSender("test", "test", "http://localhost:" + port);
+        MackerelSpool spool = new MackerelSpool(folder.newFolder());
+        spool.append("[]".getBytes("UTF-8"), 1);
+        statusCode = 400;
+        sender.setSpool(spool);
+        sender.close();
+
+        sender.drainSpool();
+        assertThat(spool.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void asyncFlushDoesNotWaitForTheServer() throws Exception {
+        statusCode = 200;
+        responseDelay = 1000;
+        MackerelSender sender = new MackerelSender("test", "test", "http://localhost:" + port);
+        sender.setAsync(2, MackerelSender.OverflowPolicy.DROP_OLDEST);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            sender.send("metric" + i, (double) i, 100);
+            sender.flush();
+        }
+        assertThat(System.currentTimeMillis() - start).isLessThan(500L);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!requestBodyList.toString().contains("metric2") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        sender.close();
+        assertThat(requestBodyList.size()).isLessThanOrEqualTo(2);
+        assertThat(requestBodyList.toString().contains("metric2")).isTrue();
+    }
+
+    @Test
+    public void retriesFailedBatches() throws Exception {
+        MackerelSender sender = new MackerelSender("test", "test", "http://localhost:" + port);
+        sender.setRetry(200, 1000, 60000, TimeUnit.MILLISECONDS, 1024 * 1024);
+        try {
+            sender.send("metric1", 1.0, 100);
+            sender.flush();
+            fail("Exception must occur");
+        } catch (Exception ignore) {
+        }
+        statusCode = 200;
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (requestBodyList.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        sender.close();
+        assertThat(requestBodyList.size()).isEqualTo(2);
+        assertThat(requestBodyList.get(1)).isEqualTo(requestBodyList.get(0));
+    }
+
+    @Test
+    public void keepsRetryingWhenTheRetryQueueIsReplacedDuringARetry() throws Exception {
+        MackerelSender sender = new MackerelSender("test", "test", "http://localhost:" + port);
+        MetricRegistry registry = new MetricRegistry();
+        sender.instrument(registry);
+        Meter sent = registry.meter(MetricRegistry.name(MackerelSender.class, "test", "series", "sent"));
+        sender.setCircuitBreaker(100, 100, TimeUnit.MILLISECONDS, 1);
+        sender.setRetry(100, 100, 60000, TimeUnit.MILLISECONDS, 1024 * 1024);
+        try {
+            sender.send("metric1", 1.0, 100);
+            sender.flush();
+            fail("Exception must occur");
+        } catch (Exception ignore) {
+        }
+        responseDelay = 1000;
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (requestBodyList.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // the retry is in flight and fails after the queue is replaced
+        sender.setRetry(100, 100, 60000, TimeUnit.MILLISECONDS, 1024 * 1024);
+        Thread.sleep(1500);
+        responseDelay = 0;
+        statusCode = 200;
+
+        deadline = System.currentTimeMillis() + 10000;
+        while (sent.getCount() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        sender.close();
+        assertThat(sent.getCount()).isEqualTo(1L);
+    }
+
     @After
     public void tearDown() {
         if (undertow != null) {
@@ -0,0 +1,273 @@
+package net.unit8.metrics.mackerel;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Runs the reporter and the sender against a misbehaving {@link FakeMackerelServer} and reports
+ * the series lost end to end, the lag of the reports behind their schedule, the growth of the heap
+ * and the time the circuit breaker takes to close again.
+ *
+ * Only a short smoke test against a healthy server runs by default.
+ * The scenarios run with the <code>soak</code> profile or <code>-Dmackerel.soak=true</code> for 3 seconds each;
+ * soak them for longer with <code>-Dmackerel.soak.seconds=3600</code>.
+ */
+public class MackerelSoakTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MackerelSoakTest.class);
+    private static final boolean SOAK = Boolean.getBoolean("mackerel.soak");
+    private static final long DURATION_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("mackerel.soak.seconds", 3));
+    private static final long SMOKE_MILLIS = 1000;
+    private static final long PERIOD_MILLIS = 250;
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000;
+    private static final int COUNTERS = 200;
+    private static final int TIMERS = 20;
+
+    private FakeMackerelServer server;
+
+    static class Result {
+        long generated;
+        long received;
+        long reports;
+        long maxLagMillis;
+        long totalLagMillis;
+        long heapGrowthBytes;
+        int breakerOpenings;
+        long maxBreakerRecoveryMillis;
+        boolean breakerClosed;
+
+        double loss() {
+            return generated == 0 ? 0 : 1 - (double) received / generated;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("loss=%.4f%% (%d/%d series) lag=%dms mean, %dms max heap=%+dKB"
+                            + " breaker=%d openings, %dms max recovery",
+                    loss() * 100, generated - received, generated,
+                    reports == 0 ? 0 : totalLagMillis / reports, maxLagMillis, heapGrowthBytes / 1024,
+                    breakerOpenings, maxBreakerRecoveryMillis);
+        }
+    }
+
+    /** A sender which counts the series the reporter hands it. */
+    static class CountingSender extends MackerelSender {
+        final AtomicLong series = new AtomicLong();
+
+        CountingSender(String baseUrl) {
+            super("soak", "test", baseUrl);
+        }
+
+        @Override
+        void add(String name, double value, long timestamp) {
+            series.incrementAndGet();
+            super.add(name, value, timestamp);
+        }
+    }
+
+    /** Moves a minute forward on every report, so each report has timestamps of its own. */
+    static class SteppingClock extends Clock {
+        private final AtomicLong time = new AtomicLong(TimeUnit.DAYS.toMillis(1));
+
+        @Override
+        public long getTick() {
+            return TimeUnit.MILLISECONDS.toNanos(getTime());
+        }
+
+        @Override
+        public long getTime() {
+            return time.get();
+        }
+
+        void step() {
+            time.addAndGet(TimeUnit.MINUTES.toMillis(1));
+        }
+    }
+
+    @Before
+    public void setupServer() throws IOException {
+        server = new FakeMackerelServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void smokeTestLosesNothing() throws Exception {
+        Result result = soak(false, SMOKE_MILLIS);
+        LOGGER.info("smoke test: {}", result);
+        assertThat(result.loss()).as(result.toString()).isEqualTo(0.0);
+    }
+
+    @Test
+    public void latencyLosesNothing() throws Exception {
+        Assume.assumeTrue(SOAK);
+        server.latency(20, 200, TimeUnit.MILLISECONDS);
+        Result result = soak(false, DURATION_MILLIS);
+        LOGGER.info("latency: {}", result);
+        assertThat(result.loss()).as(result.toString()).isEqualTo(0.0);
+    }
+
+    @Test
+    public void rateLimitedBatchesAreRetried() throws Exception {
+        Assume.assumeTrue(SOAK);
+        server.rateLimit(0.2, 1);
+        Result result = soak(true, DURATION_MILLIS);
+        LOGGER.info("rate limit: {}", result);
+        assertThat(result.loss()).as(result.toString()).isEqualTo(0.0);
+        assertThat(server.count(FakeMackerelServer.Outcome.RATE_LIMITED)).isGreaterThan(0L);
+    }
+
+    @Test
+    public void breakerRecoversFromErrorBursts() throws Exception {
+        Assume.assumeTrue(SOAK);
+        server.errorBursts(0.1, 5).errorBurst(5);
+        Result result = soak(true, DURATION_MILLIS);
+        LOGGER.info("error bursts: {}", result);
+        assertThat(result.breakerOpenings).isGreaterThan(0);
+        assertThat(result.breakerClosed).isTrue();
+        assertThat(result.loss()).as(result.toString()).isEqualTo(0.0);
+    }
+
+    @Test
+    public void resetsAndSlowReadsAreRetried() throws Exception {
+        Assume.assumeTrue(SOAK);
+        server.resets(0.1).slowReads(0.2, 5).latency(5, 50, TimeUnit.MILLISECONDS);
+        Result result = soak(true, DURATION_MILLIS);
+        LOGGER.info("resets and slow reads: {}", result);
+        assertThat(result.loss()).as(result.toString()).isEqualTo(0.0);
+    }
+
+    private Result soak(boolean retry, long durationMillis) throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final MetricRegistry internal = new MetricRegistry();
+        final SteppingClock clock = new SteppingClock();
+        final CountingSender sender = new CountingSender(server.getBaseUrl());
+        sender.setCircuitBreaker(3, 500, TimeUnit.MILLISECONDS, 1);
+        if (retry) {
+            sender.setRetry(100, 2000, 10, TimeUnit.MINUTES, 64 * 1024 * 1024);
+        }
+        sender.instrument(internal);
+        final MackerelReporter reporter = MackerelReporter.forRegistry(registry)
+                .withClock(clock)
+                .build(sender);
+
+        final Result result = new Result();
+        final BreakerWatch breaker = new BreakerWatch(internal);
+        Thread load = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random();
+                while (!Thread.currentThread().isInterrupted()) {
+                    registry.counter("soak.counter." + random.nextInt(COUNTERS)).inc();
+                    registry.timer("soak.timer." + random.nextInt(TIMERS)).update(random.nextInt(1000), TimeUnit.MILLISECONDS);
+                    Thread.yield();
+                }
+            }
+        }, "soak-load");
+        load.setDaemon(true);
+        load.start();
+        breaker.start();
+
+        final long heapBefore = usedHeap();
+        final long start = System.currentTimeMillis();
+        for (long scheduled = start; scheduled - start < durationMillis; scheduled += PERIOD_MILLIS) {
+            long now = System.currentTimeMillis();
+            if (now < scheduled) {
+                Thread.sleep(scheduled - now);
+            }
+            long lag = System.currentTimeMillis() - scheduled;
+            result.totalLagMillis += lag;
+            result.maxLagMillis = Math.max(result.maxLagMillis, lag);
+            result.reports++;
+            clock.step();
+            reporter.report();
+        }
+        load.interrupt();
+        load.join();
+
+        server.calm();
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline
+                && (server.getSeries().size() < sender.series.get() || !breaker.isClosed())) {
+            Thread.sleep(100);
+        }
+        breaker.stopWatching();
+        result.heapGrowthBytes = usedHeap() - heapBefore;
+        sender.close();
+
+        result.generated = sender.series.get();
+        result.received = server.getSeries().size();
+        result.breakerOpenings = breaker.openings;
+        result.maxBreakerRecoveryMillis = breaker.maxRecoveryMillis;
+        result.breakerClosed = breaker.isClosed();
+        return result;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Samples the state of the circuit breaker, and times how long it stays away from closed.
+     */
+    static class BreakerWatch extends Thread {
+        private final Gauge<?> state;
+        volatile int openings;
+        volatile long maxRecoveryMillis;
+        private volatile boolean running = true;
+
+        BreakerWatch(MetricRegistry internal) {
+            super("soak-breaker-watch");
+            setDaemon(true);
+            this.state = internal.getGauges().get(MetricRegistry.name(MackerelSender.class, "soak", "breaker.state"));
+        }
+
+        boolean isClosed() {
+            return ((Integer) state.getValue()) == 0;
+        }
+
+        @Override
+        public void run() {
+            long openedAt = -1;
+            while (running) {
+                boolean closed = isClosed();
+                long now = System.currentTimeMillis();
+                if (!closed && openedAt < 0) {
+                    openedAt = now;
+                    openings++;
+                } else if (closed && openedAt >= 0) {
+                    maxRecoveryMillis = Math.max(maxRecoveryMillis, now - openedAt);
+                    openedAt = -1;
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void stopWatching() throws InterruptedException {
+            running = false;
+            join();
+        }
+    }
+}
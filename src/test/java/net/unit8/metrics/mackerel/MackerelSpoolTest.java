@@ -0,0 +1,67 @@
+package net.unit8.metrics.mackerel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MackerelSpoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysOldestFirstAcrossRestart() throws Exception {
+        File dir = folder.newFolder();
+        MackerelSpool spool = new MackerelSpool(dir, 64, 1024, MackerelSpool.EvictionPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            assertThat(spool.append(("payload" + i).getBytes("UTF-8"))).isTrue();
+        }
+        spool.remove();
+        spool.close();
+
+        MackerelSpool reopened = new MackerelSpool(dir, 64, 1024, MackerelSpool.EvictionPolicy.DROP_OLDEST);
+        for (int i = 1; i < 5; i++) {
+            assertThat(new String(reopened.peek(), "UTF-8")).isEqualTo("payload" + i);
+            reopened.remove();
+        }
+        assertThat(reopened.isEmpty()).isTrue();
+        assertThat(reopened.peek()).isNull();
+    }
+
+    @Test
+    public void evictsOldestSegmentAtDiskCap() throws Exception {
+        MackerelSpool spool = new MackerelSpool(folder.newFolder(), 32, 64, MackerelSpool.EvictionPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            assertThat(spool.append(("p" + i).getBytes("UTF-8"))).isTrue();
+        }
+        assertThat(spool.getDiskUsage()).isLessThanOrEqualTo(64L);
+        assertThat(spool.getDroppedPayloads()).isGreaterThan(0L);
+        assertThat(new String(spool.peek(), "UTF-8")).isEqualTo("p" + spool.getDroppedPayloads());
+    }
+
+    @Test
+    public void rejectsNewestAtDiskCap() throws Exception {
+        MackerelSpool spool = new MackerelSpool(folder.newFolder(), 40, 40, MackerelSpool.EvictionPolicy.DROP_NEWEST);
+        assertThat(spool.append("p0".getBytes("UTF-8"))).isTrue();
+        assertThat(spool.append("p1".getBytes("UTF-8"))).isTrue();
+        assertThat(spool.append("p2".getBytes("UTF-8"))).isFalse();
+        assertThat(new String(spool.peek(), "UTF-8")).isEqualTo("p0");
+    }
+
+    @Test
+    public void keepsTheHeadWhenTheReplayedRecordWasEvicted() throws Exception {
+        MackerelSpool spool = new MackerelSpool(folder.newFolder(), 32, 64, MackerelSpool.EvictionPolicy.DROP_OLDEST);
+        assertThat(spool.append("p0".getBytes("UTF-8"), 3)).isTrue();
+        MackerelSpool.Record replayed = spool.peekRecord();
+        assertThat(replayed.getCount()).isEqualTo(3);
+        for (int i = 1; i < 4; i++) {
+            assertThat(spool.append(("p" + i).getBytes("UTF-8"), 1)).isTrue();
+        }
+
+        spool.remove(replayed);
+        assertThat(new String(spool.peek(), "UTF-8")).isEqualTo("p" + spool.getDroppedPayloads());
+    }
+}